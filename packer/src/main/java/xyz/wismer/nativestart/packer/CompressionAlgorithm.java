@@ -1,9 +1,21 @@
 package xyz.wismer.nativestart.packer;
 
 public enum CompressionAlgorithm {
-	@Deprecated XZ, ZSTD;
+	@Deprecated XZ, ZSTD,
+	/**
+	 * The LZ4 frame format: larger than zstd, but decompresses faster. Levels 1 and 2 are the fast compressor,
+	 * 3 to 12 the slower high compression one (LZ4 HC).
+	 */
+	LZ4;
 
 	public String getFileExtension() {
 		return ".tar." + name().toLowerCase();
 	}
+
+	/**
+	 * @return the extension appended to a single compressed file
+	 */
+	public String getSingleFileExtension() {
+		return "." + name().toLowerCase();
+	}
 }
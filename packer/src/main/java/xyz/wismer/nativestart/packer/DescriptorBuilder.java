@@ -4,12 +4,80 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.security.PrivateKey;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
 
 /**
  * A builder for descriptors including the application resources.
  */
 public interface DescriptorBuilder {
 
+	/**
+	 * Set the number of threads hashing the files of directory components, by default the number of available
+	 * processors, set before adding the components.
+	 * @param threads the number of threads, 1 to hash sequentially
+	 * @return this instance
+	 */
+	DescriptorBuilder hashThreads(int threads);
+
+	/**
+	 * Use a persistent cache for the hashes of the component files, set before adding the components.
+	 * @param cacheFile the cache file, created if it does not exist yet
+	 * @return this instance
+	 */
+	DescriptorBuilder hashCache(File cacheFile) throws IOException;
+
+	/**
+	 * Hash directory components while compressing them, set before adding the components.
+	 * @param enabled true to hash while compressing
+	 * @return this instance
+	 */
+	DescriptorBuilder hashWhileCompressing(boolean enabled);
+
+	/**
+	 * Write byte-identical archives for the same files, regardless of times, owners and compression workers.
+	 * @param enabled true to write reproducible archives
+	 * @return this instance
+	 */
+	DescriptorBuilder reproducible(boolean enabled);
+
+	/**
+	 * Archive files with the same content as an earlier file of the folder as hard links to it.
+	 * @param enabled true to archive duplicate files as hard links
+	 * @return this instance
+	 */
+	DescriptorBuilder hardLinks(boolean enabled);
+
+	/**
+	 * Set the order of the files in the archives of folder components, by default {@link EntryOrder#PATH}.
+	 * @param entryOrder the order
+	 * @return this instance
+	 */
+	DescriptorBuilder entryOrder(EntryOrder entryOrder);
+
+	/**
+	 * Compress incompressible files of folder components, like images and archives, in a cheap mode. Only zstd and
+	 * xz have one, LZ4 ignores this option.
+	 * @param enabled true to detect incompressible files
+	 * @return this instance
+	 */
+	DescriptorBuilder skipIncompressible(boolean enabled);
+
+	/**
+	 * Rewrite library jars with stored entries in the {@link #workDirectory(File) work directory} and publish them
+	 * compressed, set before adding the libraries.
+	 * @param enabled true to normalize library jars
+	 * @return this instance
+	 */
+	DescriptorBuilder normalizeJars(boolean enabled);
+
+	/**
+	 * Publish single-file components compressed if that saves enough, set before adding the components.
+	 * @param minSavings the share of the size the compression must save, e.g. 0.1 for 10%
+	 * @return this instance
+	 */
+	DescriptorBuilder compressFiles(double minSavings);
+
 	/**
 	 * Set the splash screen.
 	 * @param component the component for the splash screen
@@ -85,7 +153,110 @@ public interface DescriptorBuilder {
 	 * @param algorithm the compression algorithm
 	 * @param level the level of compression, depending on the chosen algorithm
 	 */
-	DescriptorBuilder compression(CompressionAlgorithm algorithm, int level);
+	default DescriptorBuilder compression(CompressionAlgorithm algorithm, int level) {
+		return compression(algorithm, level, 0);
+	}
+
+	/**
+	 * Set the compression to use for the JVM and splash screen resources
+	 * @param algorithm the compression algorithm
+	 * @param level the level of compression, depending on the chosen algorithm
+	 * @param workers the number of threads compressing in parallel (ZSTD only), 0 to use a single thread
+	 */
+	DescriptorBuilder compression(CompressionAlgorithm algorithm, int level, int workers);
+
+	/**
+	 * Choose the compression level per component, the smallest output fitting the component's share of the budget.
+	 * @param budget the CPU time for compressing all components
+	 * @return this instance
+	 */
+	DescriptorBuilder compressionTimeBudget(Duration budget);
+
+	/**
+	 * Choose the compression level per component, the fastest one reaching the ratio.
+	 * @param ratio the compressed size divided by the original size to reach, e.g. 0.4
+	 * @return this instance
+	 */
+	DescriptorBuilder compressionTargetRatio(double ratio);
+
+	/**
+	 * Compress the components with a zstd dictionary trained from their content and published with them.
+	 * @param size the maximum size of the dictionary in bytes, zstd uses 112640 by default
+	 * @return this instance
+	 */
+	DescriptorBuilder dictionary(int size);
+
+	/**
+	 * Compress the components with an existing zstd dictionary, e.g. the one of the previous release.
+	 * @param dictionaryFile the dictionary file
+	 * @return this instance
+	 */
+	DescriptorBuilder dictionary(File dictionaryFile);
+
+	/**
+	 * Publish an update from a previous release of a component, can be called several times per component.
+	 * @param installationPath the installation path of the component
+	 * @param previousSource the file or folder of the component in the previous release
+	 * @return this instance
+	 */
+	DescriptorBuilder previousRelease(String installationPath, File previousSource);
+
+	/**
+	 * Also publish the folder components as content-defined chunks in "chunks/".
+	 * @param averageChunkSize the average uncompressed size of the chunks, a power of 2
+	 * @return this instance
+	 */
+	DescriptorBuilder chunkStore(int averageChunkSize);
+
+	/**
+	 * Compress the folder components in the zstd seekable format and publish an index of the files' frames.
+	 * @param frameSize the maximum uncompressed size of a frame
+	 * @return this instance
+	 */
+	DescriptorBuilder seekableFrames(int frameSize);
+
+	/**
+	 * Also publish the folder components larger than the shard size as independently installable shards.
+	 * @param shardSize the uncompressed size of a shard
+	 * @return this instance
+	 */
+	DescriptorBuilder shards(long shardSize);
+
+	/**
+	 * Process the components concurrently on the given executor, which is not shut down by the builder.
+	 * @param executor the executor or null
+	 * @return this instance
+	 */
+	DescriptorBuilder executor(ExecutorService executor);
+
+	/**
+	 * Limit the estimated memory of the compressions running at the same time on the executor.
+	 * @param bytes the memory budget in bytes
+	 * @return this instance
+	 */
+	DescriptorBuilder memoryBudget(long bytes);
+
+	/**
+	 * Write a report with statistics about the generation, like the time spent per component.
+	 * @param reportFile the TOML file to write
+	 * @return this instance
+	 */
+	DescriptorBuilder report(File reportFile);
+
+	/**
+	 * Report the gain of the entry order over the path order, compressing every folder a second time.
+	 * @param enabled true to compare the entry orders in the report
+	 * @return this instance
+	 */
+	DescriptorBuilder reportOrderGain(boolean enabled);
+
+	/**
+	 * Keep the normalized jars and the compressed files of the files published as they are in a directory outside
+	 * the target directory, so later runs reuse them. By default a temporary directory is used and deleted.
+	 * @param directory the work directory, created if it does not exist yet
+	 * @return this instance
+	 */
+	DescriptorBuilder workDirectory(File directory);
 
 	/**
 	 * Set the target descriptor file to generate.
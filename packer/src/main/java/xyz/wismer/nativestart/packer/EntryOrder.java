@@ -0,0 +1,16 @@
+package xyz.wismer.nativestart.packer;
+
+/**
+ * The order of the files in the archives of folder components. The checksum of a component does not depend on it.
+ */
+public enum EntryOrder {
+	/**
+	 * In the order of the paths, the same order as in the index of the checksum.
+	 */
+	PATH,
+	/**
+	 * Grouped by file extension, then in the order of the paths, so files of the same type are within the match
+	 * window of the compressor even if they are spread over the tree.
+	 */
+	TYPE
+}
@@ -1,5 +1,14 @@
 package xyz.wismer.nativestart.packer;
 
 public enum HashAlgorithm {
-	BLAKE3
+	BLAKE3,
+	/**
+	 * BLAKE3 computed with the vector API (SIMD) where available, the checksums are the same as for {@link #BLAKE3}.
+	 * Needs the JVM option "--add-modules jdk.incubator.vector", otherwise the scalar implementation is used.
+	 */
+	BLAKE3_VECTOR,
+	/**
+	 * SHA-256 computed by the JDK, which uses the SHA extensions of the CPU where available.
+	 */
+	SHA256
 }
@@ -1,36 +1,78 @@
 package xyz.wismer.nativestart.packer.impl;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.lang3.ObjectUtils;
 import org.apache.commons.lang3.StringUtils;
 import xyz.wismer.nativestart.packer.Component;
 import xyz.wismer.nativestart.packer.CompressionAlgorithm;
 import xyz.wismer.nativestart.packer.DescriptorBuilder;
+import xyz.wismer.nativestart.packer.EntryOrder;
 import xyz.wismer.nativestart.packer.HashAlgorithm;
 import xyz.wismer.nativestart.packer.OperatingSystem;
+import xyz.wismer.nativestart.packer.manifest.Delta;
 import xyz.wismer.nativestart.packer.manifest.Descriptor;
 import xyz.wismer.nativestart.packer.manifest.JvmParameters;
+import xyz.wismer.nativestart.packer.manifest.Report;
+import xyz.wismer.nativestart.packer.manifest.Shard;
+import xyz.wismer.nativestart.packer.util.AdaptiveCompression;
+import xyz.wismer.nativestart.packer.util.ChunkStore;
 import xyz.wismer.nativestart.packer.util.CompressUtils;
+import xyz.wismer.nativestart.packer.util.CompressionSettings;
+import xyz.wismer.nativestart.packer.util.HashCache;
 import xyz.wismer.nativestart.packer.util.HashUtils;
+import xyz.wismer.nativestart.packer.util.JarUtils;
+import xyz.wismer.nativestart.packer.util.MemoryScheduler;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.security.PrivateKey;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DescriptorBuilderImpl implements DescriptorBuilder {
+	// the application name may be too short for a prefix
+	private static final String TEMP_PREFIX = ".nativestart-";
 
 	private final String name;
 	private final String version;
 	private Component splash;
 	private final OperatingSystem os;
 	private final HashAlgorithm hashAlgorithm;
+	private int hashThreads = Runtime.getRuntime().availableProcessors();
+	private HashCache hashCache;
+	private boolean hashWhileCompressing;
+	private boolean reproducible;
+	private boolean hardLinks;
+	private EntryOrder entryOrder = EntryOrder.PATH;
+	private boolean skipIncompressible;
+	private boolean normalizeJars;
+	// the sizes of the original jars of normalized libraries
+	private final Map<Component, Long> normalizedJars = new ConcurrentHashMap<>();
+	// the files published instead of the local sources, like normalized jars
+	private final Map<Component, File> sources = new ConcurrentHashMap<>();
+	private boolean compressFiles;
+	private double minFileSavings;
+	// the files published as they are since compressing them saved too little
+	private final Set<Component> storedFiles = ConcurrentHashMap.newKeySet();
 
 	private Component jvm;
 	private final JvmParameters jvmParameters = new JvmParameters();
@@ -39,10 +81,34 @@ public class DescriptorBuilderImpl implements DescriptorBuilder {
 	private final List<String> unmanagedPaths = new ArrayList<>();
 
 	// smaller output, but much slower: CompressionAlgorithm.XZ with level 9
-	private CompressionAlgorithm compressionAlgorithm = CompressionAlgorithm.ZSTD;
-	private int compressionLevel = 12;
+	private CompressionSettings compression = new CompressionSettings(CompressionAlgorithm.ZSTD, 12);
+	private Duration compressionTimeBudget;
+	private double compressionTargetRatio;
+	private long totalCompressSize;
+	private final Map<Component, CompressionSettings> componentCompression = new ConcurrentHashMap<>();
 	private final List<Component> toCompress = new ArrayList<>();
+	private final List<Component> toHash = new ArrayList<>();
 	private File descriptor;
+	private int dictionarySize;
+	private File dictionaryFile;
+	private xyz.wismer.nativestart.packer.manifest.Component dictionary;
+	private final Map<String, List<File>> previousReleases = new HashMap<>();
+	private final Map<Component, List<Delta>> deltas = new ConcurrentHashMap<>();
+	private int averageChunkSize;
+	private final Map<Component, String> chunkIndexes = new ConcurrentHashMap<>();
+	private int frameSize;
+	private final Map<Component, String> frameIndexes = new ConcurrentHashMap<>();
+	private long shardSize;
+	private final Map<Component, List<Shard>> shards = new ConcurrentHashMap<>();
+	private ExecutorService executor;
+	private long memoryBudget = Long.MAX_VALUE;
+	private MemoryScheduler scheduler;
+	private File reportFile;
+	private File workDirectory;
+	// the work directory of the current generation, a temporary one unless set
+	private File work;
+	private Report report;
+	private boolean reportOrderGain;
 
 	public DescriptorBuilderImpl(String name, String version, OperatingSystem os, HashAlgorithm hashAlgorithm) {
 		this.name = name;
@@ -51,6 +117,61 @@ public class DescriptorBuilderImpl implements DescriptorBuilder {
 		this.hashAlgorithm = hashAlgorithm;
 	}
 
+	@Override
+	public DescriptorBuilder hashThreads(int threads) {
+		hashThreads = threads;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder hashCache(File cacheFile) throws IOException {
+		hashCache = new HashCache(cacheFile);
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder hashWhileCompressing(boolean enabled) {
+		hashWhileCompressing = enabled;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder reproducible(boolean enabled) {
+		reproducible = enabled;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder hardLinks(boolean enabled) {
+		hardLinks = enabled;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder entryOrder(EntryOrder entryOrder) {
+		this.entryOrder = entryOrder;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder skipIncompressible(boolean enabled) {
+		skipIncompressible = enabled;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder normalizeJars(boolean enabled) {
+		normalizeJars = enabled;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder compressFiles(double minSavings) {
+		compressFiles = true;
+		minFileSavings = minSavings;
+		return this;
+	}
+
 	@Override
 	public DescriptorBuilder splash(Component component) throws IOException {
 		splash = createComponent(component);
@@ -80,6 +201,15 @@ public class DescriptorBuilderImpl implements DescriptorBuilder {
 		return this;
 	}
 
+	@Override
+	public DescriptorBuilder library(Component component) throws IOException {
+		File jar = component.getLocalSource();
+		if (normalizeJars && jar != null && jar.isFile()) {
+			normalizedJars.put(component, jar.length());
+		}
+		return DescriptorBuilder.super.library(component);
+	}
+
 	@Override
 	public DescriptorBuilder resource(Component component) throws IOException {
 		components.add(createComponent(component));
@@ -99,9 +229,91 @@ public class DescriptorBuilderImpl implements DescriptorBuilder {
 	}
 
 	@Override
-	public DescriptorBuilder compression(CompressionAlgorithm algorithm, int level) {
-		compressionAlgorithm = algorithm;
-		compressionLevel = level;
+	public DescriptorBuilder compression(CompressionAlgorithm algorithm, int level, int workers) {
+		compression = new CompressionSettings(algorithm, level);
+		compression.setWorkers(workers);
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder compressionTimeBudget(Duration budget) {
+		compressionTimeBudget = budget;
+		compressionTargetRatio = 0;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder compressionTargetRatio(double ratio) {
+		compressionTargetRatio = ratio;
+		compressionTimeBudget = null;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder dictionary(int size) {
+		dictionarySize = size;
+		dictionaryFile = null;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder dictionary(File dictionaryFile) {
+		this.dictionaryFile = dictionaryFile;
+		dictionarySize = 0;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder previousRelease(String installationPath, File previousSource) {
+		previousReleases.computeIfAbsent(installationPath, p -> new ArrayList<>()).add(previousSource);
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder chunkStore(int averageChunkSize) {
+		this.averageChunkSize = averageChunkSize;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder seekableFrames(int frameSize) {
+		this.frameSize = frameSize;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder shards(long shardSize) {
+		this.shardSize = shardSize;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder executor(ExecutorService executor) {
+		this.executor = executor;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder memoryBudget(long bytes) {
+		memoryBudget = bytes;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder report(File reportFile) {
+		this.reportFile = reportFile;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder reportOrderGain(boolean enabled) {
+		this.reportOrderGain = enabled;
+		return this;
+	}
+
+	@Override
+	public DescriptorBuilder workDirectory(File directory) {
+		workDirectory = directory;
 		return this;
 	}
 
@@ -119,35 +331,74 @@ public class DescriptorBuilderImpl implements DescriptorBuilder {
 		allComponents.add(jvm);
 		allComponents.addAll(components);
 		
-		// copy uncompressed resources
-		for (Component component : allComponents) {
-			if (!toCompress.contains(component)) {
-				File compressedFile = new File(targetDirectory, component.getRemotePath());
-				if (!compressedFile.exists()) {
-					Files.createDirectories(compressedFile.toPath().getParent());
-					Files.copy(component.getLocalSource().toPath(), compressedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		scheduler = new MemoryScheduler(memoryBudget);
+		report = new Report();
+		long start = System.nanoTime();
+		compression.setReproducible(reproducible);
+		compression.setHardLinks(hardLinks ? hashAlgorithm : null);
+		compression.setHashCache(hashCache);
+		compression.setEntryOrder(entryOrder);
+		compression.setSkipIncompressible(skipIncompressible);
+		compression.setFrameSize(frameSize);
+		work = workDirectory != null ? workDirectory : Files.createTempDirectory(TEMP_PREFIX).toFile();
+		try {
+			for (Component component : toCompress) {
+				if (normalizedJars.containsKey(component)) {
+					normalize(component);
 				}
 			}
-		}
-		// compress resources
-		for (Component component : toCompress) {
-			String extension = compressionAlgorithm.getFileExtension();
-			if (!component.getRemotePath().endsWith(extension)) {
-				component.setRemotePath(FilenameUtils.removeExtension(component.getRemotePath()) + extension);
+			if (compression.getAlgorithm() == CompressionAlgorithm.ZSTD && !toCompress.isEmpty()) {
+				byte[] bytes = null;
+				if (dictionaryFile != null) {
+					bytes = Files.readAllBytes(dictionaryFile.toPath());
+				} else if (dictionarySize > 0) {
+					bytes = CompressUtils.trainDictionary(toCompress.stream().map(this::source).toList(),
+							dictionarySize);
+				}
+				if (bytes != null) {
+					compression.setDictionary(bytes);
+					dictionary = publishDictionary(bytes, targetDirectory, baseURL);
+					report.put("dictionary", dictionary.getChecksum());
+					report.put("dictionary_size", dictionary.getSize());
+				}
 			}
-			String filename = component.getRemotePath();
-			File compressedFile = new File(targetDirectory, filename);
-			if (!compressedFile.exists()) {
-				Files.createDirectories(compressedFile.toPath().getParent());
-				CompressUtils.compress(component.getLocalSource(), compressedFile, compressionAlgorithm, compressionLevel);
+			totalCompressSize = 0;
+			for (Component component : toCompress) {
+				totalCompressSize += FileUtils.sizeOf(source(component));
 			}
-			long downloadSize = compressedFile.length();
-			if (downloadSize != component.getInstallationSize()) {
-				component.setRemoteSize(downloadSize);
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (Component component : allComponents) {
+				if (!toCompress.contains(component)) {
+					tasks.add(() -> {
+						copy(component, targetDirectory);
+						return null;
+					});
+				}
 			}
+			for (Component component : toCompress) {
+				tasks.add(() -> {
+					compress(component, targetDirectory);
+					return null;
+				});
+			}
+			run(tasks);
+		} finally {
+			if (workDirectory == null) {
+				FileUtils.deleteDirectory(work);
+			}
+		}
+		if (hashCache != null) {
+			hashCache.save();
 		}
+		report.put("duration_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		if (memoryBudget != Long.MAX_VALUE) {
+			report.put("memory_budget", memoryBudget);
+		}
+		report.put("peak_memory", scheduler.getPeakMemory());
+		report.put("queue_wait_ms", TimeUnit.NANOSECONDS.toMillis(scheduler.getTotalWaitNanos()));
 
 		Descriptor desc = new Descriptor(name, version);
+		desc.setDictionary(dictionary);
 		desc.setSplash(toManifest(splash, baseURL));
 		desc.setJvmParams(jvmParameters);
 		desc.setComponents(allComponents.stream().map(a -> toManifest(a, baseURL)).toList());
@@ -166,16 +417,453 @@ public class DescriptorBuilderImpl implements DescriptorBuilder {
 			descriptorPath = targetDirectory.toPath().resolve(name + "-" + version + "-" + os.name().toLowerCase() + ".toml");
 		}
 		Files.write(descriptorPath, desc.toToml().getBytes());
+		if (reportFile != null) {
+			Files.write(reportFile.toPath(), report.toToml().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/**
+	 * Run the tasks on the executor, or one after the other without one. Each task only updates its own component,
+	 * so the descriptor does not depend on the order in which they finish. After a failure, the tasks which did not
+	 * start yet are skipped and the running ones are awaited before throwing.
+	 */
+	private void run(List<Callable<Void>> tasks) throws IOException {
+		if (executor == null) {
+			for (Callable<Void> task : tasks) {
+				call(task);
+			}
+			return;
+		}
+		AtomicBoolean failed = new AtomicBoolean();
+		List<Future<Void>> futures = new ArrayList<>();
+		for (Callable<Void> task : tasks) {
+			futures.add(executor.submit(() -> {
+				if (failed.get()) {
+					return null;
+				}
+				try {
+					return task.call();
+				} catch (Exception | Error e) {
+					failed.set(true);
+					throw e;
+				}
+			}));
+		}
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (Future<Void> future : futures) {
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause();
+					}
+					break;
+				} catch (InterruptedException e) {
+					// stop the remaining tasks, but still wait for the running ones to clean up
+					interrupted = true;
+					failed.set(true);
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while generating " + name);
+		}
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		} else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		} else if (failure instanceof Error) {
+			throw (Error) failure;
+		} else if (failure != null) {
+			throw new IOException(failure);
+		}
+	}
+
+	private static void call(Callable<Void> task) throws IOException {
+		try {
+			task.call();
+		} catch (IOException | RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void copy(Component component, File targetDirectory) throws IOException {
+		File copiedFile = new File(targetDirectory, component.getRemotePath());
+		if (!copiedFile.exists()) {
+			Files.createDirectories(copiedFile.toPath().getParent());
+			writeAtomically(copiedFile, temp ->
+					Files.copy(source(component).toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING));
+		}
+		createDeltas(component, targetDirectory);
+	}
+
+	private void compress(Component component, File targetDirectory) throws IOException {
+		if (compressionTimeBudget != null || compressionTargetRatio > 0) {
+			chooseCompression(component);
+		}
+		if (toHash.contains(component)) {
+			compressAndHash(component, targetDirectory);
+		} else {
+			String remotePath = component.getRemotePath();
+			File publishedFile = new File(targetDirectory, compressedPath(component));
+			File compressedFile = publishedFile;
+			boolean singleFile = source(component).isFile() && !normalizedJars.containsKey(component);
+			// the compressed file of a file published as it is, kept so it is not compressed on every run
+			File keptFile = new File(work, compressedPath(component));
+			if (singleFile && !isCompressed(component, publishedFile) && isCompressed(component, keptFile)) {
+				compressedFile = keptFile;
+			}
+			if (!isCompressed(component, compressedFile)) {
+				Files.createDirectories(compressedFile.toPath().getParent());
+				writeAtomically(compressedFile, temp -> scheduled(component, () -> {
+					CompressUtils.compress(source(component), temp, settings(component));
+					return null;
+				}));
+			}
+			if (singleFile) {
+				double savings = 1 - (double) compressedFile.length() / Math.max(1, component.getInstallationSize());
+				report.put(component.getInstallationPath(), "savings", savings);
+				if (savings < minFileSavings) {
+					if (compressedFile != keptFile) {
+						Files.createDirectories(keptFile.toPath().getParent());
+						Files.move(compressedFile.toPath(), keptFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					}
+					component.setRemotePath(remotePath);
+					component.setRemoteSize(component.getInstallationSize());
+					storedFiles.add(component);
+					copy(component, targetDirectory);
+					return;
+				}
+				if (compressedFile == keptFile) {
+					Files.createDirectories(publishedFile.toPath().getParent());
+					Files.move(keptFile.toPath(), publishedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					compressedFile = publishedFile;
+				}
+			}
+			setDownloadSize(component, compressedFile);
+			if (normalizedJars.containsKey(component)) {
+				String path = component.getInstallationPath();
+				report.put(path, "jar_download_size", normalizedJars.get(component));
+				report.put(path, "download_size", compressedFile.length());
+			}
+		}
+		if (reportFile != null && reportOrderGain && entryOrder != EntryOrder.PATH
+				&& source(component).isDirectory()) {
+			reportOrderGain(component, new File(targetDirectory, compressedPath(component)));
+		}
+		createDeltas(component, targetDirectory);
+		if (averageChunkSize > 0 && source(component).isDirectory()) {
+			storeChunks(component, targetDirectory);
+		}
+		if (frameSize > 0 && source(component).isDirectory()
+				&& settings(component).getAlgorithm() == CompressionAlgorithm.ZSTD) {
+			writeFrameIndex(component, targetDirectory);
+		}
+		if (shardSize > 0 && source(component).isDirectory() && component.getInstallationSize() > shardSize) {
+			compressShards(component, targetDirectory);
+		}
+	}
+
+	private File source(Component component) {
+		return sources.getOrDefault(component, component.getLocalSource());
+	}
+
+	private void normalize(Component component) throws IOException {
+		File jar = component.getLocalSource();
+		// named by the content of the jar, so a changed jar is normalized again and libraries never share a file
+		String jarHash = HashUtils.hash(hashAlgorithm, jar, hashThreads, hashCache).getHash();
+		File normalized = new File(work, "jars/" + jarHash + ".jar");
+		if (!normalized.exists()) {
+			Files.createDirectories(normalized.toPath().getParent());
+			writeAtomically(normalized, temp -> JarUtils.normalize(jar, temp));
+		}
+		sources.put(component, normalized);
+		setInstallationInfo(component, HashUtils.hash(hashAlgorithm, normalized, hashThreads, hashCache));
+	}
+
+	private void compressShards(Component component, File targetDirectory) throws IOException {
+		List<List<String>> entries = CompressUtils.shards(source(component), shardSize);
+		CompressionSettings settings = settings(component);
+		String extension = settings.getAlgorithm().getFileExtension();
+		String compressedPath = compressedPath(component);
+		String base = compressedPath.substring(0, compressedPath.length() - extension.length());
+		List<Shard> result = new ArrayList<>();
+		for (int i = 0; i < entries.size(); i++) {
+			String shardPath = base + ".shard" + (i + 1) + extension;
+			File shardFile = new File(targetDirectory, shardPath);
+			Set<String> shardEntries = new HashSet<>(entries.get(i));
+			HashUtils.Info[] info = new HashUtils.Info[1];
+			if (isCompressed(component, shardFile)) {
+				// hashing is much cheaper than compressing the shard again
+				info[0] = HashUtils.hash(hashAlgorithm, source(component), shardEntries, hashThreads, hashCache);
+			} else {
+				writeAtomically(shardFile, temp -> info[0] = scheduled(component, "shards_",
+						settings.estimateMemory(), () -> CompressUtils.compressAndHash(source(component), shardEntries,
+								temp, settings, hashAlgorithm)));
+			}
+			result.add(new Shard(shardPath, info[0].getSize(), shardFile.length(), info[0].getHash()));
+		}
+		shards.put(component, result);
+		report.put(component.getInstallationPath(), "shards", result.size());
+	}
+
+	private void writeFrameIndex(Component component, File targetDirectory) throws IOException {
+		String indexPath = compressedPath(component) + ".index";
+		File compressedFile = new File(targetDirectory, compressedPath(component));
+		File indexFile = new File(targetDirectory, indexPath);
+		// the index of an archive written again may be outdated
+		if (!indexFile.exists() || indexFile.lastModified() < compressedFile.lastModified()) {
+			writeAtomically(indexFile, temp -> CompressUtils.writeFrameIndex(compressedFile, temp));
+		}
+		frameIndexes.put(component, indexPath);
+		report.put(component.getInstallationPath(), "frames", CompressUtils.frameCount(compressedFile));
+	}
+
+	private void reportOrderGain(Component component, File compressedFile) throws IOException {
+		long pathOrderSize = scheduled(component, "path_order_", settings(component).estimateMemory(),
+				() -> CompressUtils.compressedSize(source(component), settings(component), EntryOrder.PATH));
+		String path = component.getInstallationPath();
+		report.put(path, "path_order_size", pathOrderSize);
+		report.put(path, "order_gain", 1 - (double) compressedFile.length() / Math.max(1, pathOrderSize));
+	}
+
+	private void storeChunks(Component component, File targetDirectory) throws IOException {
+		CompressionSettings settings = settings(component);
+		// chunks are always compressed with zstd
+		int level = settings.getAlgorithm() == CompressionAlgorithm.ZSTD ? settings.getLevel() : 19;
+		ChunkStore store = new ChunkStore(new File(targetDirectory, "chunks"), hashAlgorithm, level, averageChunkSize);
+		long memory = new CompressionSettings(CompressionAlgorithm.ZSTD, level).estimateMemory();
+		ChunkStore.Result result = scheduled(component, "chunks_", memory, () -> store.add(source(component)));
+		chunkIndexes.put(component, "chunks/" + result.getIndex());
+		String path = component.getInstallationPath();
+		report.put(path, "chunks", result.getChunks());
+		report.put(path, "chunks_new", result.getNewChunks());
+		report.put(path, "chunks_new_size", result.getNewSize());
+	}
+
+	private void compressAndHash(Component component, File targetDirectory) throws IOException {
+		Files.createDirectories(targetDirectory.toPath());
+		File temp = Files.createTempFile(targetDirectory.toPath(), TEMP_PREFIX, ".tmp").toFile();
+		try {
+			HashUtils.Info info = scheduled(component,
+					() -> CompressUtils.compressAndHash(source(component), temp, settings(component), hashAlgorithm));
+			setInstallationInfo(component, info);
+			File compressedFile = new File(targetDirectory, compressedPath(component));
+			if (!isCompressed(component, compressedFile)) {
+				Files.createDirectories(compressedFile.toPath().getParent());
+				Files.move(temp.toPath(), compressedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			setDownloadSize(component, compressedFile);
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	/**
+	 * @return whether the file exists and was compressed with the current dictionary (if any) and as seekable archive
+	 * if a frame size is set
+	 */
+	private boolean isCompressed(Component component, File compressedFile) throws IOException {
+		if (!compressedFile.exists()) {
+			return false;
+		}
+		CompressionSettings settings = settings(component);
+		return settings.getAlgorithm() != CompressionAlgorithm.ZSTD
+				|| CompressUtils.dictionaryId(compressedFile) == settings.getDictionaryId()
+				&& CompressUtils.isSeekable(compressedFile) == settings.getFrameSize() > 0;
+	}
+
+	private CompressionSettings settings(Component component) {
+		return componentCompression.getOrDefault(component, compression);
+	}
+
+	private void chooseCompression(Component component) throws IOException {
+		File source = source(component);
+		byte[] sample = CompressUtils.sample(source, AdaptiveCompression.SAMPLE_SIZE);
+		AdaptiveCompression.Trial trial = scheduled(component, "trial_", AdaptiveCompression.estimateMemory(compression),
+				() -> {
+					if (compressionTimeBudget != null) {
+						long size = FileUtils.sizeOf(source);
+						long budget = (long) (compressionTimeBudget.toNanos()
+								* ((double) size / Math.max(1, totalCompressSize)));
+						return AdaptiveCompression.chooseForTime(sample, size, budget, compression);
+					}
+					return AdaptiveCompression.chooseForRatio(sample, compressionTargetRatio, compression);
+				});
+		componentCompression.put(component, trial.getSettings());
+		String path = component.getInstallationPath();
+		report.put(path, "algorithm", trial.getSettings().getAlgorithm().name());
+		report.put(path, "level", trial.getSettings().getLevel());
+		report.put(path, "sample_ratio", trial.getRatio());
+	}
+
+	private xyz.wismer.nativestart.packer.manifest.Component publishDictionary(byte[] bytes, File targetDirectory,
+			URL baseURL) throws IOException {
+		File directory = new File(targetDirectory, "dictionaries");
+		Files.createDirectories(directory.toPath());
+		File temp = Files.createTempFile(directory.toPath(), TEMP_PREFIX, ".tmp").toFile();
+		try {
+			Files.write(temp.toPath(), bytes);
+			HashUtils.Info info = HashUtils.hash(hashAlgorithm, temp);
+			String path = "dictionaries/" + info.getHash() + ".dict";
+			File dictionaryFile = new File(targetDirectory, path);
+			if (!dictionaryFile.exists()) {
+				Files.move(temp.toPath(), dictionaryFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+			}
+			return new xyz.wismer.nativestart.packer.manifest.Component(url(baseURL, path), info.getSize(),
+					info.getHash(), null);
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	private interface Job<T> {
+		T run() throws IOException;
+	}
+
+	/**
+	 * Run a compression once its estimated memory fits into the budget and report the time spent.
+	 */
+	private <T> T scheduled(Component component, Job<T> job) throws IOException {
+		return scheduled(component, "", settings(component).estimateMemory(), job);
+	}
+
+	private <T> T scheduled(Component component, String reportPrefix, long memory, Job<T> job) throws IOException {
+		long waited;
+		try {
+			waited = scheduler.acquire(memory);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to compress " + component.getInstallationPath());
+		}
+		long start = System.nanoTime();
+		try {
+			return job.run();
+		} finally {
+			scheduler.release(memory);
+			String path = component.getInstallationPath();
+			report.put(path, reportPrefix + "estimated_memory", memory);
+			report.put(path, reportPrefix + "queue_wait_ms", TimeUnit.NANOSECONDS.toMillis(waited));
+			report.put(path, reportPrefix + "compress_ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		}
+	}
+
+	/**
+	 * Create the updates from the previous releases of the component which are smaller than the full download:
+	 * a zstd patch for a file, the changed files for a folder.
+	 */
+	private void createDeltas(Component component, File targetDirectory) throws IOException {
+		File source = source(component);
+		List<File> previousSources = previousReleases.getOrDefault(component.getInstallationPath(), List.of());
+		for (File previousSource : previousSources) {
+			if (source.isFile() && previousSource.length() > CompressUtils.MAX_PATCH_BASE_SIZE) {
+				continue;
+			}
+			String baseChecksum = HashUtils.hash(hashAlgorithm, previousSource, hashThreads, hashCache).getHash();
+			if (baseChecksum.equals(component.getInstallationChecksum())) {
+				continue;
+			}
+			String format = source.isFile() ? Delta.PATCH : Delta.CHANGES;
+			String path = "deltas/" + baseChecksum + "-" + component.getInstallationChecksum()
+					+ (source.isFile() ? ".zstd" : settings(component).getAlgorithm().getFileExtension());
+			File deltaFile = new File(targetDirectory, path);
+			String reportPrefix = "delta_" + baseChecksum.substring(0, 12) + "_";
+			if (!deltaFile.exists()) {
+				Files.createDirectories(deltaFile.toPath().getParent());
+				if (source.isFile()) {
+					long memory = CompressUtils.estimatePatchMemory(previousSource.length(), source.length());
+					writeAtomically(deltaFile, temp -> scheduled(component, reportPrefix, memory, () -> {
+						CompressUtils.patch(previousSource, source, temp, settings(component).getLevel());
+						return null;
+					}));
+				} else {
+					long memory = settings(component).estimateMemory();
+					writeAtomically(deltaFile, temp -> scheduled(component, reportPrefix, memory, () -> {
+						CompressUtils.compressChanges(previousSource, source, temp, settings(component));
+						return null;
+					}));
+				}
+			}
+			long size = deltaFile.length();
+			report.put(component.getInstallationPath(), reportPrefix + "size", size);
+			long fullSize = component.getRemoteSize() > 0 ? component.getRemoteSize() : component.getInstallationSize();
+			if (size < fullSize) {
+				Delta delta = new Delta(path, size, baseChecksum, format);
+				if (source.isDirectory()) {
+					delta.setRemoved(CompressUtils.removedEntries(previousSource, source));
+				}
+				deltas.computeIfAbsent(component, c -> new ArrayList<>()).add(delta);
+			}
+		}
+	}
+
+	private interface FileWriter {
+		void write(File file) throws IOException;
+	}
+
+	/**
+	 * Write a file next to the target and move it in place, so a concurrent or aborted run never leaves a partial
+	 * target behind. Components sharing a target path write the same content, so the last move wins.
+	 */
+	private void writeAtomically(File target, FileWriter writer) throws IOException {
+		File temp = Files.createTempFile(target.getParentFile().toPath(), TEMP_PREFIX, ".tmp").toFile();
+		try {
+			writer.write(temp);
+			Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	private String compressedPath(Component component) {
+		if (source(component).isFile()) {
+			String extension = settings(component).getAlgorithm().getSingleFileExtension();
+			if (!component.getRemotePath().endsWith(extension)) {
+				component.setRemotePath(component.getRemotePath() + extension);
+			}
+			return component.getRemotePath();
+		}
+		String extension = settings(component).getAlgorithm().getFileExtension();
+		if (!component.getRemotePath().endsWith(extension)) {
+			component.setRemotePath(FilenameUtils.removeExtension(component.getRemotePath()) + extension);
+		}
+		return component.getRemotePath();
+	}
+
+	private void setDownloadSize(Component component, File compressedFile) {
+		long downloadSize = compressedFile.length();
+		report.put(component.getInstallationPath(), "ratio",
+				(double) downloadSize / Math.max(1, component.getInstallationSize()));
+		if (downloadSize != component.getInstallationSize()) {
+			component.setRemoteSize(downloadSize);
+		}
+	}
+
+	private void setInstallationInfo(Component component, HashUtils.Info info) {
+		component.setInstallationSize(info.getSize());
+		component.setInstallationChecksum(info.getHash());
+		component.setRemotePath(component.getRemotePath().replace("{hash}", info.getHash()));
 	}
 
 	private Component createComponent(Component component) throws IOException {
 		File localSource = component.getLocalSource();
-		if (localSource != null) {
-			HashUtils.Info info = HashUtils.hash(hashAlgorithm, localSource);
-			component.setInstallationSize(info.getSize());
-			component.setInstallationChecksum(info.getHash());
-			component.setRemotePath(component.getRemotePath().replace("{hash}", info.getHash()));
-			if (localSource.isDirectory()) {
+		if (localSource != null && localSource.isDirectory() && hashWhileCompressing) {
+			// hashed by generate() while compressing
+			toHash.add(component);
+			toCompress.add(component);
+		} else if (localSource != null && normalizedJars.containsKey(component)) {
+			// normalized and hashed by generate()
+			toCompress.add(component);
+		} else if (localSource != null) {
+			HashUtils.Info info = HashUtils.hash(hashAlgorithm, localSource, hashThreads, hashCache);
+			setInstallationInfo(component, info);
+			if (localSource.isDirectory() || compressFiles) {
 				toCompress.add(component);
 			}
 			else {
@@ -193,6 +881,25 @@ public class DescriptorBuilderImpl implements DescriptorBuilder {
 			result.setDownloadSize(component.getRemoteSize());
 		}
 		result.setCachePath(component.getCachePath());
+		if (chunkIndexes.containsKey(component)) {
+			result.setChunkIndex(url(baseURL, chunkIndexes.get(component)));
+		}
+		if (frameIndexes.containsKey(component)) {
+			result.setFrameIndex(url(baseURL, frameIndexes.get(component)));
+		}
+		for (Shard shard : shards.getOrDefault(component, List.of())) {
+			result.getShards().add(new Shard(url(baseURL, shard.getUrl()), shard.getSize(), shard.getDownloadSize(),
+					shard.getChecksum()));
+		}
+		for (Delta delta : deltas.getOrDefault(component, List.of())) {
+			Delta published = new Delta(url(baseURL, delta.getUrl()), delta.getSize(), delta.getBaseChecksum(),
+					delta.getFormat());
+			published.setRemoved(delta.getRemoved());
+			result.getDeltas().add(published);
+		}
+		if (dictionary != null && toCompress.contains(component) && !storedFiles.contains(component) && settings(component).getDictionary() != null) {
+			result.setDictionary(dictionary.getChecksum());
+		}
 		return result;
 	}
 
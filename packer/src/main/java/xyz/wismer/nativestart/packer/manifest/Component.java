@@ -4,6 +4,8 @@ import org.apache.commons.lang3.StringUtils;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 public class Component {
@@ -13,6 +15,11 @@ public class Component {
 	private String checksum;
 	private final String path;
 	private String cachePath;
+	private String dictionary;
+	private List<Delta> deltas = new ArrayList<>();
+	private List<Shard> shards = new ArrayList<>();
+	private String chunkIndex;
+	private String frameIndex;
 
 	public Component(String url, long size, String checksum, String path) {
 		this.url = url;
@@ -65,6 +72,46 @@ public class Component {
 		return cachePath;
 	}
 
+	public void setDictionary(String dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	public String getDictionary() {
+		return dictionary;
+	}
+
+	public void setDeltas(List<Delta> deltas) {
+		this.deltas = deltas;
+	}
+
+	public List<Delta> getDeltas() {
+		return deltas;
+	}
+
+	public void setShards(List<Shard> shards) {
+		this.shards = shards;
+	}
+
+	public List<Shard> getShards() {
+		return shards;
+	}
+
+	public void setChunkIndex(String chunkIndex) {
+		this.chunkIndex = chunkIndex;
+	}
+
+	public String getChunkIndex() {
+		return chunkIndex;
+	}
+
+	public void setFrameIndex(String frameIndex) {
+		this.frameIndex = frameIndex;
+	}
+
+	public String getFrameIndex() {
+		return frameIndex;
+	}
+
 	public void append(Toml toml) {
 		toml.append("url", url);
 		toml.append("size", size);
@@ -74,6 +121,9 @@ public class Component {
 		toml.append("checksum", checksum);
 		toml.append("path", path);
 		toml.append("cache_path", cachePath);
+		toml.append("dictionary", dictionary);
+		toml.append("chunk_index", chunkIndex);
+		toml.append("frame_index", frameIndex);
 	}
 
 	public String toToml() {
@@ -96,6 +146,9 @@ public class Component {
 		String checksum = removeQuotes(properties.getProperty("checksum"));
 		String path = removeQuotes(properties.getProperty("path"));
 		String cachePath = removeQuotes(properties.getProperty("cache_path"));
+		String dictionary = removeQuotes(properties.getProperty("dictionary"));
+		String chunkIndex = removeQuotes(properties.getProperty("chunk_index"));
+		String frameIndex = removeQuotes(properties.getProperty("frame_index"));
 		Component component = new Component(url, Long.parseLong(size), checksum, path);
 		if (downloadSize != null) {
 			component.setDownloadSize(Long.parseLong(downloadSize));
@@ -103,6 +156,9 @@ public class Component {
 		if (cachePath != null) {
 			component.setCachePath(cachePath);
 		}
+		component.setDictionary(dictionary);
+		component.setChunkIndex(chunkIndex);
+		component.setFrameIndex(frameIndex);
 		return component;
 	}
 
@@ -0,0 +1,70 @@
+package xyz.wismer.nativestart.packer.manifest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An update from a previous version of a component.
+ */
+public class Delta {
+	/**
+	 * A zstd frame decompressed with the previous version of the file as dictionary.
+	 */
+	public static final String PATCH = "patch";
+	/**
+	 * An archive of the new and changed files, extracted over the previous version of the folder
+	 * after deleting the removed paths.
+	 */
+	public static final String CHANGES = "changes";
+
+	private String url;
+	private final long size;
+	private final String baseChecksum;
+	private final String format;
+	private List<String> removed = new ArrayList<>();
+
+	public Delta(String url, long size, String baseChecksum, String format) {
+		this.url = url;
+		this.size = size;
+		this.baseChecksum = baseChecksum;
+		this.format = format;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public String getBaseChecksum() {
+		return baseChecksum;
+	}
+
+	public String getFormat() {
+		return format;
+	}
+
+	public List<String> getRemoved() {
+		return removed;
+	}
+
+	public void setRemoved(List<String> removed) {
+		this.removed = removed;
+	}
+
+	public void append(Toml toml) {
+		toml.append("url", url);
+		toml.append("size", size);
+		toml.append("base_checksum", baseChecksum);
+		toml.append("format", format);
+		if (!removed.isEmpty()) {
+			toml.append("removed", removed);
+		}
+	}
+}
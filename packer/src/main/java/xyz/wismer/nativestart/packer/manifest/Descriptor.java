@@ -8,6 +8,7 @@ public class Descriptor {
 	private final String version;
 	private String signature;
 	private Component splash;
+	private Component dictionary;
 	private JvmParameters jvmParams;
 	private List<Component> components = new ArrayList<>();
 	private List<String> unmanagedPaths = new ArrayList<>();
@@ -25,6 +26,13 @@ public class Descriptor {
 		this.splash = splash;
 	}
 
+	/**
+	 * @param dictionary the zstd dictionary needed to decompress the components referring to its checksum
+	 */
+	public void setDictionary(Component dictionary) {
+		this.dictionary = dictionary;
+	}
+
 	public void setSignature(String signature) {
 		this.signature = signature;
 	}
@@ -53,14 +61,31 @@ public class Descriptor {
 		if (unmanagedPaths != null) {
 			toml.append("unmanaged", unmanagedPaths);
 		}
+		if (dictionary != null) {
+			toml.appendTable("dictionary");
+			dictionary.append(toml);
+		}
 		toml.appendTable("splash");
 		splash.append(toml);
+		appendDeltas(toml, "splash", splash);
 		toml.appendTable("jvm");
 		jvmParams.append(toml);
 		for (Component component : components) {
 			toml.appendArrayOfTable("component");
 			component.append(toml);
+			appendDeltas(toml, "component", component);
+			for (Shard shard : component.getShards()) {
+				toml.appendArrayOfTable("component.shard");
+				shard.append(toml);
+			}
 		}
 		return toml.toString();
 	}
+
+	private static void appendDeltas(Toml toml, String key, Component component) {
+		for (Delta delta : component.getDeltas()) {
+			toml.appendArrayOfTable(key + ".delta");
+			delta.append(toml);
+		}
+	}
 }
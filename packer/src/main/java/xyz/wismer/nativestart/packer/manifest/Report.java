@@ -0,0 +1,57 @@
+package xyz.wismer.nativestart.packer.manifest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Statistics about the generation of a descriptor, written next to it for the build logs. Not read by the launcher.
+ */
+public class Report {
+	private final Map<String, Object> summary = new LinkedHashMap<>();
+	private final Map<String, Map<String, Object>> components = new LinkedHashMap<>();
+
+	/**
+	 * Add a value to the summary.
+	 * @param key the TOML key
+	 * @param value a String or a number
+	 */
+	public synchronized void put(String key, Object value) {
+		summary.put(key, value);
+	}
+
+	/**
+	 * Add a value for a component.
+	 * @param path the installation path of the component
+	 * @param key the TOML key
+	 * @param value a String or a number
+	 */
+	public synchronized void put(String path, String key, Object value) {
+		components.computeIfAbsent(path, p -> {
+			Map<String, Object> values = new LinkedHashMap<>();
+			values.put("path", p);
+			return values;
+		}).put(key, value);
+	}
+
+	public synchronized String toToml() {
+		Toml toml = new Toml();
+		append(toml, summary);
+		for (Map<String, Object> values : components.values()) {
+			toml.appendArrayOfTable("component");
+			append(toml, values);
+		}
+		return toml.toString();
+	}
+
+	private static void append(Toml toml, Map<String, Object> values) {
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			if (entry.getValue() instanceof Double || entry.getValue() instanceof Float) {
+				toml.append(entry.getKey(), ((Number) entry.getValue()).doubleValue());
+			} else if (entry.getValue() instanceof Number) {
+				toml.append(entry.getKey(), ((Number) entry.getValue()).longValue());
+			} else {
+				toml.append(entry.getKey(), String.valueOf(entry.getValue()));
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package xyz.wismer.nativestart.packer.manifest;
+
+/**
+ * An archive of a part of the files of a folder component, which can be downloaded and extracted independently of
+ * the other shards of the component.
+ */
+public class Shard {
+	private String url;
+	private final long size;
+	private final long downloadSize;
+	private final String checksum;
+
+	public Shard(String url, long size, long downloadSize, String checksum) {
+		this.url = url;
+		this.size = size;
+		this.downloadSize = downloadSize;
+		this.checksum = checksum;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public void setUrl(String url) {
+		this.url = url;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getDownloadSize() {
+		return downloadSize;
+	}
+
+	public String getChecksum() {
+		return checksum;
+	}
+
+	public void append(Toml toml) {
+		toml.append("url", url);
+		toml.append("size", size);
+		toml.append("download_size", downloadSize);
+		toml.append("checksum", checksum);
+	}
+}
@@ -8,14 +8,14 @@ public class Toml {
 
 	public void append(String key, String value) {
 		if (value != null) {
-			toml.append(key).append(" = \"").append(value).append("\"").append(LF);
+			toml.append(key).append(" = \"").append(escape(value)).append("\"").append(LF);
 		}
 	}
 
 	public void append(String key, List<String> values) {
 		toml.append(key).append(" = [").append(LF);
 		for (String value : values) {
-			toml.append("  \"").append(value).append("\",").append(LF);
+			toml.append("  \"").append(escape(value)).append("\",").append(LF);
 		}
 		toml.append("]").append(LF);
 	}
@@ -24,6 +24,10 @@ public class Toml {
 		toml.append(key).append(" = ").append(value).append(LF);
 	}
 
+	public void append(String key, double value) {
+		toml.append(key).append(" = ").append(value).append(LF);
+	}
+
 	public void appendTable(String key) {
 		toml.append(LF);
 		toml.append("[").append(key).append("]").append(LF);
@@ -34,6 +38,37 @@ public class Toml {
 		toml.append("[[").append(key).append("]]").append(LF);
 	}
 
+	private static String escape(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+					escaped.append("\\\"");
+					break;
+				case '\\':
+					escaped.append("\\\\");
+					break;
+				case '\n':
+					escaped.append("\\n");
+					break;
+				case '\r':
+					escaped.append("\\r");
+					break;
+				case '\t':
+					escaped.append("\\t");
+					break;
+				default:
+					if (c < 0x20 || c == 0x7f) {
+						escaped.append(String.format("\\u%04X", (int) c));
+					} else {
+						escaped.append(c);
+					}
+			}
+		}
+		return escaped.toString();
+	}
+
 	@Override
 	public String toString() {
 		return toml.toString();
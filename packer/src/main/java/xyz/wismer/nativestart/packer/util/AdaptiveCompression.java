@@ -0,0 +1,137 @@
+package xyz.wismer.nativestart.packer.util;
+
+import xyz.wismer.nativestart.packer.CompressionAlgorithm;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the compression level of a component by compressing a sample of it with every candidate level of the
+ * configured algorithm.
+ */
+public class AdaptiveCompression {
+	public static final int SAMPLE_SIZE = 1024 * 1024;
+
+	// from fastest to strongest
+	private static int[] levels(CompressionAlgorithm algorithm) {
+		switch (algorithm) {
+			case ZSTD:
+				return new int[] {1, 3, 6, 9, 12, 16, 19};
+			case LZ4:
+				return new int[] {1, 3, 9, 12};
+			default:
+				return new int[] {1, 3, 6, 9};
+		}
+	}
+
+	/**
+	 * @return the memory needed to compress a sample with the strongest candidate
+	 */
+	public static long estimateMemory(CompressionSettings base) {
+		long memory = 0;
+		for (int level : levels(base.getAlgorithm())) {
+			memory = Math.max(memory, new CompressionSettings(base.getAlgorithm(), level).estimateMemory());
+		}
+		return memory;
+	}
+
+	public static class Trial {
+		private final CompressionSettings settings;
+		private final double ratio;
+		private final long cpuNanos;
+
+		private Trial(CompressionSettings settings, double ratio, long cpuNanos) {
+			this.settings = settings;
+			this.ratio = ratio;
+			this.cpuNanos = cpuNanos;
+		}
+
+		public CompressionSettings getSettings() {
+			return settings;
+		}
+
+		/**
+		 * @return the compressed size of the sample divided by its size
+		 */
+		public double getRatio() {
+			return ratio;
+		}
+
+		/**
+		 * @return the CPU time used to compress the sample
+		 */
+		public long getCpuNanos() {
+			return cpuNanos;
+		}
+	}
+
+	/**
+	 * Choose the candidate with the smallest output whose estimated CPU time for the whole component fits the budget,
+	 * or the fastest candidate if none does.
+	 * @param sample the sample of the component
+	 * @param size the size of the component
+	 * @param budgetNanos the CPU time available for the component
+	 * @param base the settings to take the workers and dictionary from
+	 */
+	public static Trial chooseForTime(byte[] sample, long size, long budgetNanos, CompressionSettings base)
+			throws IOException {
+		List<Trial> trials = trials(sample, base);
+		double scale = (double) size / Math.max(1, sample.length);
+		Trial fastest = null;
+		Trial best = null;
+		for (Trial trial : trials) {
+			if (fastest == null || trial.cpuNanos < fastest.cpuNanos) {
+				fastest = trial;
+			}
+			if (trial.cpuNanos * scale <= budgetNanos && (best == null || trial.ratio < best.ratio)) {
+				best = trial;
+			}
+		}
+		return best != null ? best : fastest;
+	}
+
+	/**
+	 * Choose the fastest candidate reaching the target ratio on the sample, or the one with the smallest output
+	 * if none does.
+	 * @param sample the sample of the component
+	 * @param targetRatio the compressed size divided by the original size to reach
+	 * @param base the settings to take the workers and dictionary from
+	 */
+	public static Trial chooseForRatio(byte[] sample, double targetRatio, CompressionSettings base) throws IOException {
+		List<Trial> trials = trials(sample, base);
+		Trial fastest = null;
+		Trial smallest = null;
+		for (Trial trial : trials) {
+			if (trial.ratio <= targetRatio && (fastest == null || trial.cpuNanos < fastest.cpuNanos)) {
+				fastest = trial;
+			}
+			if (smallest == null || trial.ratio < smallest.ratio) {
+				smallest = trial;
+			}
+		}
+		return fastest != null ? fastest : smallest;
+	}
+
+	private static List<Trial> trials(byte[] sample, CompressionSettings base) throws IOException {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		boolean cpuTime = threads.isCurrentThreadCpuTimeSupported();
+		List<Trial> trials = new ArrayList<>();
+		for (int level : levels(base.getAlgorithm())) {
+			CompressionSettings settings = new CompressionSettings(base.getAlgorithm(), level);
+			settings.copyArchiveOptions(base);
+			settings.setWorkers(base.getWorkers());
+			settings.setDictionary(base.getDictionary());
+			// the sample is compressed on this thread only
+			CompressionSettings single = new CompressionSettings(settings.getAlgorithm(), settings.getLevel());
+			single.setDictionary(settings.getDictionary());
+			long start = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+			long compressedSize = CompressUtils.compressedSize(sample, single);
+			long end = cpuTime ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+			trials.add(new Trial(settings, (double) compressedSize / Math.max(1, sample.length), end - start));
+		}
+		return trials;
+	}
+}
@@ -0,0 +1,271 @@
+package xyz.wismer.nativestart.packer.util;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * BLAKE3 (unkeyed, 256 bit output) following the reference implementation. Unlike a streaming digest this allows
+ * to hash the subtrees of a file concurrently and several chunks at once with the vector API, the result is the
+ * same as hashing it sequentially.
+ */
+class Blake3 {
+	static final int OUT_LEN = 32;
+	static final int CHUNK_LEN = 1024;
+	private static final int BLOCK_LEN = 64;
+
+	private static final int CHUNK_START = 1;
+	private static final int CHUNK_END = 1 << 1;
+	private static final int PARENT = 1 << 2;
+	private static final int ROOT = 1 << 3;
+
+	private static final int[] IV = {
+			0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+	};
+	private static final int[] MSG_PERMUTATION = {2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8};
+
+	// subtrees up to this size are read at once and hashed by a single thread
+	private static final int LEAF_LEN = 1024 * CHUNK_LEN;
+
+	private static final boolean VECTOR_AVAILABLE = vectorAvailable();
+
+	/**
+	 * Whether chunks can be hashed with the vector API. Needs the module jdk.incubator.vector and more than
+	 * one lane, otherwise the scalar implementation is used.
+	 */
+	static boolean isVectorAvailable() {
+		return VECTOR_AVAILABLE;
+	}
+
+	private static boolean vectorAvailable() {
+		try {
+			return Blake3Vector.LANES > 1;
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Hash a file, splitting it into subtrees hashed by the given pool or sequentially if the pool is null.
+	 */
+	static byte[] hash(FileChannel channel, long length, ForkJoinPool pool, boolean vectorized) throws IOException {
+		SubtreeTask task = new SubtreeTask(channel, 0, length, true, pool != null, vectorized);
+		try {
+			int[] cv = pool == null || ForkJoinTask.getPool() == pool ? task.compute() : pool.invoke(task);
+			return toBytes(cv);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Hash data held in memory.
+	 */
+	static byte[] hash(byte[] data, int offset, int length, boolean vectorized) {
+		return toBytes(subtree(data, offset, length, 0, true, vectorized));
+	}
+
+	/**
+	 * The chaining value of a subtree (or the output if it is the root). The data must start at a chunk boundary.
+	 */
+	static int[] subtree(byte[] data, int offset, int length, long chunkCounter, boolean root, boolean vectorized) {
+		if (vectorized && VECTOR_AVAILABLE && length > CHUNK_LEN && length / CHUNK_LEN >= Blake3Vector.LANES) {
+			return subtreeVectorized(data, offset, length, chunkCounter, root);
+		}
+		if (length <= CHUNK_LEN) {
+			return chunk(data, offset, length, chunkCounter, root);
+		}
+		int leftLength = (int) leftLength(length);
+		int[] left = subtree(data, offset, leftLength, chunkCounter, false, false);
+		int[] right = subtree(data, offset + leftLength, length - leftLength, chunkCounter + leftLength / CHUNK_LEN,
+				false, false);
+		return parent(left, right, root);
+	}
+
+	private static int[] subtreeVectorized(byte[] data, int offset, int length, long chunkCounter, boolean root) {
+		int chunks = (length + CHUNK_LEN - 1) / CHUNK_LEN;
+		int fullChunks = length / CHUNK_LEN;
+		int[][] cvs = new int[chunks][];
+		int i = 0;
+		for (; i + Blake3Vector.LANES <= fullChunks; i += Blake3Vector.LANES) {
+			Blake3Vector.chunks(data, offset + i * CHUNK_LEN, chunkCounter + i, cvs, i);
+		}
+		for (; i < chunks; i++) {
+			cvs[i] = chunk(data, offset + i * CHUNK_LEN, Math.min(CHUNK_LEN, length - i * CHUNK_LEN), chunkCounter + i,
+					false);
+		}
+		return merge(cvs, 0, chunks, root);
+	}
+
+	// combines the chaining values of chunks following the same rule as leftLength()
+	private static int[] merge(int[][] cvs, int from, int count, boolean root) {
+		if (count == 1) {
+			return cvs[from];
+		}
+		int left = Integer.highestOneBit(count - 1);
+		return parent(merge(cvs, from, left, false), merge(cvs, from + left, count - left, false), root);
+	}
+
+	/**
+	 * The length of the left subtree: the largest power of two number of full chunks leaving at least one byte
+	 * for the right subtree.
+	 */
+	static long leftLength(long length) {
+		return Long.highestOneBit((length - 1) / CHUNK_LEN) * CHUNK_LEN;
+	}
+
+	static int[] chunk(byte[] data, int offset, int length, long chunkCounter, boolean root) {
+		int[] cv = IV.clone();
+		int[] block = new int[16];
+		int[] out = new int[16];
+		int position = 0;
+		int flags = CHUNK_START;
+		do {
+			int blockLength = Math.min(BLOCK_LEN, length - position);
+			boolean last = position + blockLength >= length;
+			readBlock(data, offset + position, blockLength, block);
+			int blockFlags = flags | (last ? CHUNK_END | (root ? ROOT : 0) : 0);
+			compress(cv, block, chunkCounter, blockLength, blockFlags, out);
+			System.arraycopy(out, 0, cv, 0, 8);
+			flags = 0;
+			position += blockLength;
+		} while (position < length);
+		return cv;
+	}
+
+	static int[] parent(int[] left, int[] right, boolean root) {
+		int[] block = new int[16];
+		System.arraycopy(left, 0, block, 0, 8);
+		System.arraycopy(right, 0, block, 8, 8);
+		int[] out = new int[16];
+		compress(IV, block, 0, BLOCK_LEN, PARENT | (root ? ROOT : 0), out);
+		int[] cv = new int[8];
+		System.arraycopy(out, 0, cv, 0, 8);
+		return cv;
+	}
+
+	static byte[] toBytes(int[] cv) {
+		byte[] result = new byte[OUT_LEN];
+		for (int i = 0; i < 8; i++) {
+			result[4 * i] = (byte) cv[i];
+			result[4 * i + 1] = (byte) (cv[i] >>> 8);
+			result[4 * i + 2] = (byte) (cv[i] >>> 16);
+			result[4 * i + 3] = (byte) (cv[i] >>> 24);
+		}
+		return result;
+	}
+
+	private static void readBlock(byte[] data, int offset, int length, int[] block) {
+		int full = length / 4;
+		for (int i = 0; i < full; i++) {
+			int p = offset + 4 * i;
+			block[i] = (data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8 | (data[p + 2] & 0xFF) << 16 | (data[p + 3] & 0xFF) << 24;
+		}
+		for (int i = full; i < 16; i++) {
+			int word = 0;
+			for (int j = 0; j < 4; j++) {
+				int p = 4 * i + j;
+				if (p < length) {
+					word |= (data[offset + p] & 0xFF) << (8 * j);
+				}
+			}
+			block[i] = word;
+		}
+	}
+
+	/**
+	 * The compression function, out receives the first 8 words of the output (chaining value) followed by
+	 * the remaining 8 words of the state.
+	 */
+	private static void compress(int[] cv, int[] block, long counter, int blockLength, int flags, int[] out) {
+		int s0 = cv[0], s1 = cv[1], s2 = cv[2], s3 = cv[3], s4 = cv[4], s5 = cv[5], s6 = cv[6], s7 = cv[7];
+		int s8 = IV[0], s9 = IV[1], s10 = IV[2], s11 = IV[3];
+		int s12 = (int) counter, s13 = (int) (counter >>> 32), s14 = blockLength, s15 = flags;
+		int[] m = block.clone();
+		int[] t = new int[16];
+		for (int round = 0; round < 7; round++) {
+			// columns
+			s0 = s0 + s4 + m[0]; s12 = Integer.rotateRight(s12 ^ s0, 16); s8 = s8 + s12; s4 = Integer.rotateRight(s4 ^ s8, 12);
+			s0 = s0 + s4 + m[1]; s12 = Integer.rotateRight(s12 ^ s0, 8); s8 = s8 + s12; s4 = Integer.rotateRight(s4 ^ s8, 7);
+			s1 = s1 + s5 + m[2]; s13 = Integer.rotateRight(s13 ^ s1, 16); s9 = s9 + s13; s5 = Integer.rotateRight(s5 ^ s9, 12);
+			s1 = s1 + s5 + m[3]; s13 = Integer.rotateRight(s13 ^ s1, 8); s9 = s9 + s13; s5 = Integer.rotateRight(s5 ^ s9, 7);
+			s2 = s2 + s6 + m[4]; s14 = Integer.rotateRight(s14 ^ s2, 16); s10 = s10 + s14; s6 = Integer.rotateRight(s6 ^ s10, 12);
+			s2 = s2 + s6 + m[5]; s14 = Integer.rotateRight(s14 ^ s2, 8); s10 = s10 + s14; s6 = Integer.rotateRight(s6 ^ s10, 7);
+			s3 = s3 + s7 + m[6]; s15 = Integer.rotateRight(s15 ^ s3, 16); s11 = s11 + s15; s7 = Integer.rotateRight(s7 ^ s11, 12);
+			s3 = s3 + s7 + m[7]; s15 = Integer.rotateRight(s15 ^ s3, 8); s11 = s11 + s15; s7 = Integer.rotateRight(s7 ^ s11, 7);
+			// diagonals
+			s0 = s0 + s5 + m[8]; s15 = Integer.rotateRight(s15 ^ s0, 16); s10 = s10 + s15; s5 = Integer.rotateRight(s5 ^ s10, 12);
+			s0 = s0 + s5 + m[9]; s15 = Integer.rotateRight(s15 ^ s0, 8); s10 = s10 + s15; s5 = Integer.rotateRight(s5 ^ s10, 7);
+			s1 = s1 + s6 + m[10]; s12 = Integer.rotateRight(s12 ^ s1, 16); s11 = s11 + s12; s6 = Integer.rotateRight(s6 ^ s11, 12);
+			s1 = s1 + s6 + m[11]; s12 = Integer.rotateRight(s12 ^ s1, 8); s11 = s11 + s12; s6 = Integer.rotateRight(s6 ^ s11, 7);
+			s2 = s2 + s7 + m[12]; s13 = Integer.rotateRight(s13 ^ s2, 16); s8 = s8 + s13; s7 = Integer.rotateRight(s7 ^ s8, 12);
+			s2 = s2 + s7 + m[13]; s13 = Integer.rotateRight(s13 ^ s2, 8); s8 = s8 + s13; s7 = Integer.rotateRight(s7 ^ s8, 7);
+			s3 = s3 + s4 + m[14]; s14 = Integer.rotateRight(s14 ^ s3, 16); s9 = s9 + s14; s4 = Integer.rotateRight(s4 ^ s9, 12);
+			s3 = s3 + s4 + m[15]; s14 = Integer.rotateRight(s14 ^ s3, 8); s9 = s9 + s14; s4 = Integer.rotateRight(s4 ^ s9, 7);
+			if (round < 6) {
+				for (int i = 0; i < 16; i++) {
+					t[i] = m[MSG_PERMUTATION[i]];
+				}
+				int[] swap = m;
+				m = t;
+				t = swap;
+			}
+		}
+		out[0] = s0 ^ s8; out[1] = s1 ^ s9; out[2] = s2 ^ s10; out[3] = s3 ^ s11;
+		out[4] = s4 ^ s12; out[5] = s5 ^ s13; out[6] = s6 ^ s14; out[7] = s7 ^ s15;
+		out[8] = s8 ^ cv[0]; out[9] = s9 ^ cv[1]; out[10] = s10 ^ cv[2]; out[11] = s11 ^ cv[3];
+		out[12] = s12 ^ cv[4]; out[13] = s13 ^ cv[5]; out[14] = s14 ^ cv[6]; out[15] = s15 ^ cv[7];
+	}
+
+	@SuppressWarnings("serial")
+	private static class SubtreeTask extends RecursiveTask<int[]> {
+		private final FileChannel channel;
+		private final long offset;
+		private final long length;
+		private final boolean root;
+		private final boolean parallel;
+		private final boolean vectorized;
+
+		private SubtreeTask(FileChannel channel, long offset, long length, boolean root, boolean parallel,
+				boolean vectorized) {
+			this.channel = channel;
+			this.offset = offset;
+			this.length = length;
+			this.root = root;
+			this.parallel = parallel;
+			this.vectorized = vectorized;
+		}
+
+		@Override
+		protected int[] compute() {
+			if (length <= LEAF_LEN) {
+				byte[] data = new byte[(int) length];
+				ByteBuffer buffer = ByteBuffer.wrap(data);
+				try {
+					while (buffer.hasRemaining()) {
+						if (channel.read(buffer, offset + buffer.position()) == -1) {
+							throw new IOException("Unexpected end of file");
+						}
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return subtree(data, 0, data.length, offset / CHUNK_LEN, root, vectorized);
+			}
+			long leftLength = leftLength(length);
+			SubtreeTask left = new SubtreeTask(channel, offset, leftLength, false, parallel, vectorized);
+			SubtreeTask right = new SubtreeTask(channel, offset + leftLength, length - leftLength, false, parallel,
+					vectorized);
+			if (!parallel) {
+				return parent(left.compute(), right.compute(), root);
+			}
+			left.fork();
+			int[] rightCv = right.compute();
+			return parent(left.join(), rightCv, root);
+		}
+	}
+}
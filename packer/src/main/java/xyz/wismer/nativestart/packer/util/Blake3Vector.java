@@ -0,0 +1,168 @@
+package xyz.wismer.nativestart.packer.util;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Hashes several full BLAKE3 chunks at once, one chunk per vector lane. Loading this class fails if the module
+ * jdk.incubator.vector is not available.
+ */
+class Blake3Vector {
+	private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+	static final int LANES = SPECIES.length();
+
+	private static final int CHUNK_START = 1;
+	private static final int CHUNK_END = 1 << 1;
+	private static final int BLOCK_LEN = 64;
+	private static final int WORDS_PER_CHUNK = Blake3.CHUNK_LEN / 4;
+
+	private static final int[] IV = {
+			0x6A09E667, 0xBB67AE85, 0x3C6EF372, 0xA54FF53A, 0x510E527F, 0x9B05688C, 0x1F83D9AB, 0x5BE0CD19
+	};
+
+	/**
+	 * Compute the chaining values of {@link #LANES} consecutive full chunks.
+	 * @param data the data
+	 * @param offset the offset of the first chunk
+	 * @param chunkCounter the counter of the first chunk
+	 * @param cvs receives the chaining values
+	 * @param first the index in cvs for the first chunk
+	 */
+	static void chunks(byte[] data, int offset, long chunkCounter, int[][] cvs, int first) {
+		// transpose to [block][word][lane]
+		int[] words = new int[WORDS_PER_CHUNK * LANES];
+		for (int lane = 0; lane < LANES; lane++) {
+			int base = offset + lane * Blake3.CHUNK_LEN;
+			for (int i = 0; i < WORDS_PER_CHUNK; i++) {
+				int p = base + 4 * i;
+				words[i * LANES + lane] = (data[p] & 0xFF) | (data[p + 1] & 0xFF) << 8
+						| (data[p + 2] & 0xFF) << 16 | (data[p + 3] & 0xFF) << 24;
+			}
+		}
+		int[] counterLow = new int[LANES];
+		int[] counterHigh = new int[LANES];
+		for (int lane = 0; lane < LANES; lane++) {
+			counterLow[lane] = (int) (chunkCounter + lane);
+			counterHigh[lane] = (int) ((chunkCounter + lane) >>> 32);
+		}
+		IntVector low = IntVector.fromArray(SPECIES, counterLow, 0);
+		IntVector high = IntVector.fromArray(SPECIES, counterHigh, 0);
+
+		IntVector h0 = IntVector.broadcast(SPECIES, IV[0]);
+		IntVector h1 = IntVector.broadcast(SPECIES, IV[1]);
+		IntVector h2 = IntVector.broadcast(SPECIES, IV[2]);
+		IntVector h3 = IntVector.broadcast(SPECIES, IV[3]);
+		IntVector h4 = IntVector.broadcast(SPECIES, IV[4]);
+		IntVector h5 = IntVector.broadcast(SPECIES, IV[5]);
+		IntVector h6 = IntVector.broadcast(SPECIES, IV[6]);
+		IntVector h7 = IntVector.broadcast(SPECIES, IV[7]);
+
+		for (int block = 0; block < 16; block++) {
+			int flags = (block == 0 ? CHUNK_START : 0) | (block == 15 ? CHUNK_END : 0);
+			int w = block * 16 * LANES;
+			IntVector m0 = IntVector.fromArray(SPECIES, words, w);
+			IntVector m1 = IntVector.fromArray(SPECIES, words, w + LANES);
+			IntVector m2 = IntVector.fromArray(SPECIES, words, w + 2 * LANES);
+			IntVector m3 = IntVector.fromArray(SPECIES, words, w + 3 * LANES);
+			IntVector m4 = IntVector.fromArray(SPECIES, words, w + 4 * LANES);
+			IntVector m5 = IntVector.fromArray(SPECIES, words, w + 5 * LANES);
+			IntVector m6 = IntVector.fromArray(SPECIES, words, w + 6 * LANES);
+			IntVector m7 = IntVector.fromArray(SPECIES, words, w + 7 * LANES);
+			IntVector m8 = IntVector.fromArray(SPECIES, words, w + 8 * LANES);
+			IntVector m9 = IntVector.fromArray(SPECIES, words, w + 9 * LANES);
+			IntVector m10 = IntVector.fromArray(SPECIES, words, w + 10 * LANES);
+			IntVector m11 = IntVector.fromArray(SPECIES, words, w + 11 * LANES);
+			IntVector m12 = IntVector.fromArray(SPECIES, words, w + 12 * LANES);
+			IntVector m13 = IntVector.fromArray(SPECIES, words, w + 13 * LANES);
+			IntVector m14 = IntVector.fromArray(SPECIES, words, w + 14 * LANES);
+			IntVector m15 = IntVector.fromArray(SPECIES, words, w + 15 * LANES);
+
+			IntVector s0 = h0, s1 = h1, s2 = h2, s3 = h3, s4 = h4, s5 = h5, s6 = h6, s7 = h7;
+			IntVector s8 = IntVector.broadcast(SPECIES, IV[0]);
+			IntVector s9 = IntVector.broadcast(SPECIES, IV[1]);
+			IntVector s10 = IntVector.broadcast(SPECIES, IV[2]);
+			IntVector s11 = IntVector.broadcast(SPECIES, IV[3]);
+			IntVector s12 = low;
+			IntVector s13 = high;
+			IntVector s14 = IntVector.broadcast(SPECIES, BLOCK_LEN);
+			IntVector s15 = IntVector.broadcast(SPECIES, flags);
+
+			for (int round = 0; round < 7; round++) {
+				// columns
+				s0 = s0.add(s4).add(m0); s12 = s12.lanewise(VectorOperators.XOR, s0).lanewise(VectorOperators.ROR, 16);
+				s8 = s8.add(s12); s4 = s4.lanewise(VectorOperators.XOR, s8).lanewise(VectorOperators.ROR, 12);
+				s0 = s0.add(s4).add(m1); s12 = s12.lanewise(VectorOperators.XOR, s0).lanewise(VectorOperators.ROR, 8);
+				s8 = s8.add(s12); s4 = s4.lanewise(VectorOperators.XOR, s8).lanewise(VectorOperators.ROR, 7);
+
+				s1 = s1.add(s5).add(m2); s13 = s13.lanewise(VectorOperators.XOR, s1).lanewise(VectorOperators.ROR, 16);
+				s9 = s9.add(s13); s5 = s5.lanewise(VectorOperators.XOR, s9).lanewise(VectorOperators.ROR, 12);
+				s1 = s1.add(s5).add(m3); s13 = s13.lanewise(VectorOperators.XOR, s1).lanewise(VectorOperators.ROR, 8);
+				s9 = s9.add(s13); s5 = s5.lanewise(VectorOperators.XOR, s9).lanewise(VectorOperators.ROR, 7);
+
+				s2 = s2.add(s6).add(m4); s14 = s14.lanewise(VectorOperators.XOR, s2).lanewise(VectorOperators.ROR, 16);
+				s10 = s10.add(s14); s6 = s6.lanewise(VectorOperators.XOR, s10).lanewise(VectorOperators.ROR, 12);
+				s2 = s2.add(s6).add(m5); s14 = s14.lanewise(VectorOperators.XOR, s2).lanewise(VectorOperators.ROR, 8);
+				s10 = s10.add(s14); s6 = s6.lanewise(VectorOperators.XOR, s10).lanewise(VectorOperators.ROR, 7);
+
+				s3 = s3.add(s7).add(m6); s15 = s15.lanewise(VectorOperators.XOR, s3).lanewise(VectorOperators.ROR, 16);
+				s11 = s11.add(s15); s7 = s7.lanewise(VectorOperators.XOR, s11).lanewise(VectorOperators.ROR, 12);
+				s3 = s3.add(s7).add(m7); s15 = s15.lanewise(VectorOperators.XOR, s3).lanewise(VectorOperators.ROR, 8);
+				s11 = s11.add(s15); s7 = s7.lanewise(VectorOperators.XOR, s11).lanewise(VectorOperators.ROR, 7);
+
+				// diagonals
+				s0 = s0.add(s5).add(m8); s15 = s15.lanewise(VectorOperators.XOR, s0).lanewise(VectorOperators.ROR, 16);
+				s10 = s10.add(s15); s5 = s5.lanewise(VectorOperators.XOR, s10).lanewise(VectorOperators.ROR, 12);
+				s0 = s0.add(s5).add(m9); s15 = s15.lanewise(VectorOperators.XOR, s0).lanewise(VectorOperators.ROR, 8);
+				s10 = s10.add(s15); s5 = s5.lanewise(VectorOperators.XOR, s10).lanewise(VectorOperators.ROR, 7);
+
+				s1 = s1.add(s6).add(m10); s12 = s12.lanewise(VectorOperators.XOR, s1).lanewise(VectorOperators.ROR, 16);
+				s11 = s11.add(s12); s6 = s6.lanewise(VectorOperators.XOR, s11).lanewise(VectorOperators.ROR, 12);
+				s1 = s1.add(s6).add(m11); s12 = s12.lanewise(VectorOperators.XOR, s1).lanewise(VectorOperators.ROR, 8);
+				s11 = s11.add(s12); s6 = s6.lanewise(VectorOperators.XOR, s11).lanewise(VectorOperators.ROR, 7);
+
+				s2 = s2.add(s7).add(m12); s13 = s13.lanewise(VectorOperators.XOR, s2).lanewise(VectorOperators.ROR, 16);
+				s8 = s8.add(s13); s7 = s7.lanewise(VectorOperators.XOR, s8).lanewise(VectorOperators.ROR, 12);
+				s2 = s2.add(s7).add(m13); s13 = s13.lanewise(VectorOperators.XOR, s2).lanewise(VectorOperators.ROR, 8);
+				s8 = s8.add(s13); s7 = s7.lanewise(VectorOperators.XOR, s8).lanewise(VectorOperators.ROR, 7);
+
+				s3 = s3.add(s4).add(m14); s14 = s14.lanewise(VectorOperators.XOR, s3).lanewise(VectorOperators.ROR, 16);
+				s9 = s9.add(s14); s4 = s4.lanewise(VectorOperators.XOR, s9).lanewise(VectorOperators.ROR, 12);
+				s3 = s3.add(s4).add(m15); s14 = s14.lanewise(VectorOperators.XOR, s3).lanewise(VectorOperators.ROR, 8);
+				s9 = s9.add(s14); s4 = s4.lanewise(VectorOperators.XOR, s9).lanewise(VectorOperators.ROR, 7);
+
+				// message permutation {2, 6, 3, 10, 7, 0, 4, 13, 1, 11, 12, 5, 9, 14, 15, 8}
+				IntVector t0 = m2, t1 = m6, t2 = m3, t3 = m10, t4 = m7, t5 = m0, t6 = m4, t7 = m13;
+				IntVector t8 = m1, t9 = m11, t10 = m12, t11 = m5, t12 = m9, t13 = m14, t14 = m15, t15 = m8;
+				m0 = t0; m1 = t1; m2 = t2; m3 = t3; m4 = t4; m5 = t5; m6 = t6; m7 = t7;
+				m8 = t8; m9 = t9; m10 = t10; m11 = t11; m12 = t12; m13 = t13; m14 = t14; m15 = t15;
+			}
+
+			h0 = s0.lanewise(VectorOperators.XOR, s8);
+			h1 = s1.lanewise(VectorOperators.XOR, s9);
+			h2 = s2.lanewise(VectorOperators.XOR, s10);
+			h3 = s3.lanewise(VectorOperators.XOR, s11);
+			h4 = s4.lanewise(VectorOperators.XOR, s12);
+			h5 = s5.lanewise(VectorOperators.XOR, s13);
+			h6 = s6.lanewise(VectorOperators.XOR, s14);
+			h7 = s7.lanewise(VectorOperators.XOR, s15);
+		}
+
+		int[] result = new int[8 * LANES];
+		h0.intoArray(result, 0);
+		h1.intoArray(result, LANES);
+		h2.intoArray(result, 2 * LANES);
+		h3.intoArray(result, 3 * LANES);
+		h4.intoArray(result, 4 * LANES);
+		h5.intoArray(result, 5 * LANES);
+		h6.intoArray(result, 6 * LANES);
+		h7.intoArray(result, 7 * LANES);
+		for (int lane = 0; lane < LANES; lane++) {
+			int[] cv = new int[8];
+			for (int i = 0; i < 8; i++) {
+				cv[i] = result[i * LANES + lane];
+			}
+			cvs[first + lane] = cv;
+		}
+	}
+}
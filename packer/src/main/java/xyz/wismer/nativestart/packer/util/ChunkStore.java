@@ -0,0 +1,142 @@
+package xyz.wismer.nativestart.packer.util;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import org.bouncycastle.crypto.Digest;
+import xyz.wismer.nativestart.packer.HashAlgorithm;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A content-addressed store of compressed chunks of component archives. The archive of a folder is split into
+ * content-defined chunks, each stored as "{checksum}.zstd" unless it already exists, so the chunks which did not
+ * change since a previous release are neither uploaded nor downloaded again.
+ * <p>
+ * The chunk index of a component is stored as "{checksum}.index", with one line "checksum\tsize\tdownload_size"
+ * per chunk. The checksums are those of the uncompressed data. Concatenating the chunks gives the reproducible
+ * uncompressed tar of the folder, so the chunks of unchanged files are the same in every build.
+ */
+public class ChunkStore {
+	private final Path directory;
+	private final HashAlgorithm hashAlgorithm;
+	private final int level;
+	private final int averageChunkSize;
+
+	public static class Result {
+		private final String index;
+		private final int chunks;
+		private final int newChunks;
+		private final long newSize;
+
+		private Result(String index, int chunks, int newChunks, long newSize) {
+			this.index = index;
+			this.chunks = chunks;
+			this.newChunks = newChunks;
+			this.newSize = newSize;
+		}
+
+		/**
+		 * @return the file name of the index in the store
+		 */
+		public String getIndex() {
+			return index;
+		}
+
+		public int getChunks() {
+			return chunks;
+		}
+
+		/**
+		 * @return the number of chunks which were not in the store yet
+		 */
+		public int getNewChunks() {
+			return newChunks;
+		}
+
+		/**
+		 * @return the compressed size of the chunks which were not in the store yet
+		 */
+		public long getNewSize() {
+			return newSize;
+		}
+	}
+
+	/**
+	 * @param directory the directory of the store
+	 * @param hashAlgorithm the algorithm for the checksums of chunks and indexes
+	 * @param level the zstd level to compress the chunks with
+	 * @param averageChunkSize the average size of the uncompressed chunks, a power of 2
+	 */
+	public ChunkStore(File directory, HashAlgorithm hashAlgorithm, int level, int averageChunkSize) {
+		if (Integer.bitCount(averageChunkSize) != 1) {
+			throw new IllegalArgumentException("The average chunk size must be a power of 2");
+		}
+		this.directory = directory.toPath();
+		this.hashAlgorithm = hashAlgorithm;
+		this.level = level;
+		this.averageChunkSize = averageChunkSize;
+	}
+
+	/**
+	 * Store the chunks of the archive of a folder and its index.
+	 * @param source the folder
+	 */
+	public Result add(File source) throws IOException {
+		Files.createDirectories(directory);
+		StringBuilder index = new StringBuilder();
+		int[] counts = new int[2];
+		long[] newSize = {0};
+		try (ZstdCompressCtx ctx = new ZstdCompressCtx().setLevel(level);
+			 ChunkingOutputStream out = new ChunkingOutputStream(averageChunkSize, (data, length) -> {
+			String checksum = checksum(data, length);
+			Path chunk = directory.resolve(checksum + ".zstd");
+			long downloadSize;
+			if (Files.exists(chunk)) {
+				downloadSize = Files.size(chunk);
+			} else {
+				byte[] compressed = new byte[(int) Zstd.compressBound(length)];
+				int compressedLength = ctx.compressByteArray(compressed, 0, compressed.length, data, 0, length);
+				write(chunk, compressed, compressedLength);
+				downloadSize = compressedLength;
+				counts[1]++;
+				newSize[0] += downloadSize;
+			}
+			counts[0]++;
+			index.append(checksum).append('\t').append(length).append('\t').append(downloadSize).append('\n');
+		})) {
+			CompressUtils.archive(source, out, true);
+		}
+		byte[] indexData = index.toString().getBytes(StandardCharsets.UTF_8);
+		String name = checksum(indexData, indexData.length) + ".index";
+		Path indexFile = directory.resolve(name);
+		if (!Files.exists(indexFile)) {
+			write(indexFile, indexData, indexData.length);
+		}
+		return new Result(name, counts[0], counts[1], newSize[0]);
+	}
+
+	private String checksum(byte[] data, int length) {
+		Digest digest = HashUtils.createDigest(hashAlgorithm);
+		digest.update(data, 0, length);
+		return HashUtils.toHex(digest);
+	}
+
+	// concurrent builds store the same content under the same name
+	private void write(Path file, byte[] data, int length) throws IOException {
+		Path temp = Files.createTempFile(directory, "chunk", ".tmp");
+		try {
+			try (OutputStream out = Files.newOutputStream(temp)) {
+				out.write(data, 0, length);
+			}
+			Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package xyz.wismer.nativestart.packer.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Splits the written data into content-defined chunks (FastCDC with normalized chunking): a chunk ends where a
+ * rolling gear hash of the last bytes matches a mask, so an insertion or deletion only changes the chunks around it.
+ */
+class ChunkingOutputStream extends OutputStream {
+	private static final long[] GEAR = new long[256];
+
+	static {
+		// fixed seed: the boundaries must be the same in every build
+		Random random = new Random(0x6e617469766573L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	interface Consumer {
+		void chunk(byte[] data, int length) throws IOException;
+	}
+
+	private final int minSize;
+	private final int averageSize;
+	private final int maxSize;
+	// more bits before the average size, fewer after it, so most chunks are close to the average
+	private final long smallMask;
+	private final long largeMask;
+	private final Consumer consumer;
+	private final byte[] buffer;
+	private int length;
+	private long fingerprint;
+
+	/**
+	 * @param averageSize the average chunk size, a power of 2
+	 * @param consumer receives the chunks, the data is only valid during the call
+	 */
+	ChunkingOutputStream(int averageSize, Consumer consumer) {
+		int bits = Integer.numberOfTrailingZeros(averageSize);
+		this.minSize = averageSize / 4;
+		this.averageSize = averageSize;
+		this.maxSize = averageSize * 4;
+		this.smallMask = -1L << (64 - bits - 2);
+		this.largeMask = -1L << (64 - bits + 2);
+		this.consumer = consumer;
+		this.buffer = new byte[maxSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		for (int i = off; i < off + len; i++) {
+			buffer[length++] = b[i];
+			if (length <= minSize) {
+				continue;
+			}
+			fingerprint = (fingerprint << 1) + GEAR[b[i] & 0xFF];
+			long mask = length < averageSize ? smallMask : largeMask;
+			if ((fingerprint & mask) == 0 || length == maxSize) {
+				emit();
+			}
+		}
+	}
+
+	private void emit() throws IOException {
+		consumer.chunk(buffer, length);
+		length = 0;
+		fingerprint = 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (length > 0) {
+			emit();
+		}
+	}
+}
@@ -1,84 +1,819 @@
 package xyz.wismer.nativestart.packer.util;
 
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdDictTrainer;
+import com.github.luben.zstd.ZstdException;
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.archivers.tar.TarConstants;
-import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
-import org.apache.commons.compress.compressors.zstandard.ZstdCompressorOutputStream;
-import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.bouncycastle.crypto.Digest;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
 import xyz.wismer.nativestart.packer.CompressionAlgorithm;
+import xyz.wismer.nativestart.packer.EntryOrder;
+import xyz.wismer.nativestart.packer.HashAlgorithm;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 
 public class CompressUtils {
+	// the base of a patch is loaded as dictionary, which zstd only indexes completely with large tables
+	public static final long MAX_PATCH_BASE_SIZE = 64L * 1024 * 1024;
+	// lower levels do not find the matches in large dictionaries
+	public static final int MIN_PATCH_LEVEL = 19;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	// zstd recommends about 100 times the dictionary size as training data
+	private static final int SAMPLES_PER_DICTIONARY_BYTE = 100;
+	private static final int MAX_SAMPLES_SIZE = 64 * 1024 * 1024;
+	private static final int MAX_SAMPLE_SIZE = 128 * 1024;
+	private static final int ZSTD_MAX_FRAME_HEADER_SIZE = 18;
+	private static final int MIN_SAMPLE_PART = 16 * 1024;
+	// the modification time of the entries of reproducible archives, 1980-01-01T00:00:00Z
+	private static final long REPRODUCIBLE_MOD_TIME = 315532800000L;
+	// the level for incompressible files, which zstd stores in raw blocks at any level
+	private static final int CHEAP_ZSTD_LEVEL = 1;
 
 	public static void compress(File file, File target, CompressionAlgorithm algorithm, int level) throws IOException {
+		compress(file, target, new CompressionSettings(algorithm, level));
+	}
+
+	public static void compress(File file, File target, CompressionSettings settings) throws IOException {
 		if (file.isFile()) {
-			try (OutputStream cos = compressedStream(Files.newOutputStream(target.toPath()), algorithm, level)) {
-				try (FileInputStream in = new FileInputStream(file)) {
-					IOUtils.copy(in, cos);
-				}
+			try (OutputStream cos = compressedStream(create(target), settings)) {
+				new FileCopier(cos).copy(file.toPath(), null);
 			}
 		} else if (file.isDirectory()) {
-			try (TarArchiveOutputStream taos = new TarArchiveOutputStream(
-					compressedStream(Files.newOutputStream(target.toPath()), algorithm, level))) {
-				taos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
-				addToArchive(taos, file, null);
+			try (Archive archive = new Archive(compressedStream(create(target), settings), settings,
+					hardLinks(file, settings))) {
+				addToArchive(archive, file, null, settings.getEntryOrder());
 			}
 		} else {
 			throw new UnsupportedOperationException("Compressing " + file + " is not supported");
 		}
 	}
 
-	private static OutputStream compressedStream(OutputStream out, CompressionAlgorithm algorithm, int level)
+	/**
+	 * Write the uncompressed tar of a directory, the same as {@link #compress(File, File, CompressionSettings)}
+	 * compresses.
+	 * @param directory the directory
+	 * @param out receives the tar, not closed
+	 * @param reproducible whether to write the archive as described in {@link CompressionSettings#setReproducible}
+	 */
+	public static void archive(File directory, OutputStream out, boolean reproducible) throws IOException {
+		try (Archive archive = new Archive(CloseShieldOutputStream.wrap(out), reproducible)) {
+			addToArchive(archive, directory, null, EntryOrder.PATH);
+		}
+	}
+
+	/**
+	 * Compress a directory and hash it at the same time, reading each file only once.
+	 * The result is the same as {@link HashUtils#hash(HashAlgorithm, File)} for the directory.
+	 */
+	public static HashUtils.Info compressAndHash(File directory, File target, CompressionSettings settings,
+			HashAlgorithm hashAlgorithm) throws IOException {
+		return compressAndHash(directory, name -> true, target, settings, hashAlgorithm);
+	}
+
+	/**
+	 * Compress some of the files of a directory and hash them at the same time, as if the directory only contained
+	 * these files.
+	 * @param entries the paths of the files relative to the directory, separated by "/"
+	 */
+	public static HashUtils.Info compressAndHash(File directory, Set<String> entries, File target,
+			CompressionSettings settings, HashAlgorithm hashAlgorithm) throws IOException {
+		return compressAndHash(directory, entries::contains, target, settings, hashAlgorithm);
+	}
+
+	private static HashUtils.Info compressAndHash(File directory, Predicate<String> filter, File target,
+			CompressionSettings settings, HashAlgorithm hashAlgorithm) throws IOException {
+		if (!directory.isDirectory()) {
+			throw new UnsupportedOperationException("Compressing and hashing " + directory + " is not supported");
+		}
+		HashUtils.Index index = new HashUtils.Index(hashAlgorithm, settings.getEntryOrder() != EntryOrder.PATH);
+		// the hard links use the algorithm of the index
+		HardLinks hardLinks = settings.getHardLinks() != null
+				? new HardLinks(directory.toPath(), hashAlgorithm, settings.getHashCache()) : null;
+		try (Archive archive = new Archive(compressedStream(create(target), settings), settings, hardLinks)) {
+			addToArchive(archive, directory, index, settings.getEntryOrder(), filter);
+		}
+		return index.toInfo();
+	}
+
+	/**
+	 * Split the files of a directory into shards of about the same size, each a range of the files in the order of
+	 * their paths, so similar files stay together. Shards are larger than their share where single files are.
+	 * @param directory the directory
+	 * @param shardSize the maximum size of a shard
+	 * @return the paths of the files of every shard, relative to the directory and separated by "/"
+	 */
+	public static List<List<String>> shards(File directory, long shardSize) throws IOException {
+		List<String> names = new ArrayList<>();
+		List<Long> sizes = new ArrayList<>();
+		TreeWalker.walk(directory.toPath(), true, (path, name, linked) -> {
+			names.add(name);
+			// symbolic links to files are archived as links
+			sizes.add(Files.isSymbolicLink(path) ? 0 : Files.size(path));
+		});
+		long total = sizes.stream().mapToLong(Long::longValue).sum();
+		int count = (int) Math.max(1, (total + shardSize - 1) / shardSize);
+		List<List<String>> shards = new ArrayList<>();
+		List<String> shard = new ArrayList<>();
+		long size = 0;
+		for (int i = 0; i < names.size(); i++) {
+			// end the shard where the next file would take it further from its share of the total than stopping
+			long share = total * (shards.size() + 1) / count;
+			if (!shard.isEmpty() && shards.size() < count - 1 && size + sizes.get(i) - share > share - size) {
+				shards.add(shard);
+				shard = new ArrayList<>();
+			}
+			shard.add(names.get(i));
+			size += sizes.get(i);
+		}
+		shards.add(shard);
+		return shards;
+	}
+
+	// levels 1 and 2 use the fast compressor, higher ones LZ4 HC like "lz4 -3" to "lz4 -12"
+	private static LZ4Compressor lz4Compressor(int level) {
+		LZ4Factory factory = LZ4Factory.fastestInstance();
+		return level <= 2 ? factory.fastCompressor() : factory.highCompressor(Math.min(level, 12));
+	}
+
+	private static FileChannel create(File target) throws IOException {
+		return FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+	}
+
+	private static OutputStream compressedStream(WritableByteChannel channel, CompressionSettings settings)
 			throws IOException {
-		switch (algorithm) {
-			case XZ: return new XZCompressorOutputStream(out, level);
-			case ZSTD: return new ZstdCompressorOutputStream(out, level);
+		switch (settings.getAlgorithm()) {
+			case XZ: return new XZOutputStream(Channels.newOutputStream(channel), new LZMA2Options(settings.getLevel()));
+			case LZ4:
+				// independent blocks with a content checksum like the lz4 command line tool
+				return new LZ4FrameOutputStream(Channels.newOutputStream(channel), LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB,
+						-1, lz4Compressor(settings.getLevel()), XXHashFactory.fastestInstance().hash32(),
+						LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE, LZ4FrameOutputStream.FLG.Bits.CONTENT_CHECKSUM);
+			case ZSTD:
+				ZstdDirectOutputStream zos = new ZstdDirectOutputStream(channel, settings.getLevel());
+				int workers = settings.getZstdWorkers();
+				if (workers > 0) {
+					// multi-threaded compression still writes standard frames
+					zos.setWorkers(workers);
+				}
+				if (settings.getDictionary() != null) {
+					zos.setDict(settings.getDictionary());
+				}
+				zos.setFrameSize(settings.getFrameSize());
+				return zos;
 		}
 		throw new IllegalArgumentException("Unknown compression algorithm");
 	}
 
-	// based on https://memorynotfound.com/java-tar-example-compress-decompress-tar-tar-gz-files/
-	private static void addToArchive(TarArchiveOutputStream out, File file, String dir) throws IOException {
-		String entry;
-		if (dir == null) {
-			entry = "";
-		} else if (dir.isEmpty()) {
-			entry = file.getName();
+	/**
+	 * Create a zstd patch like "zstd --patch-from": a frame which decompresses to the content of the source file,
+	 * using the content of the base file as dictionary. Decompressing needs a window log limit of at least
+	 * {@link #patchWindowLog(long, long)}.
+	 * @param base the previous version, at most {@link #MAX_PATCH_BASE_SIZE} bytes
+	 * @param source the current version
+	 * @param target the patch file
+	 * @param level the zstd level, at least {@link #MIN_PATCH_LEVEL} is used
+	 */
+	public static void patch(File base, File source, File target, int level) throws IOException {
+		if (base.length() > MAX_PATCH_BASE_SIZE) {
+			throw new IllegalArgumentException(base + " is too large to be the base of a patch");
+		}
+		byte[] dictionary = Files.readAllBytes(base.toPath());
+		int log = log2(dictionary.length);
+		try (ZstdOutputStream zos = new ZstdOutputStream(Files.newOutputStream(target.toPath()),
+				Math.max(level, MIN_PATCH_LEVEL))) {
+			zos.setLong(patchWindowLog(dictionary.length, source.length()));
+			// zstd only indexes as much of a dictionary as its hash and chain tables cover
+			zos.setHashLog(Math.max(Zstd.hashLogMin(), Math.min(log - 2, Zstd.hashLogMax())));
+			zos.setChainLog(Math.max(Zstd.chainLogMin(), Math.min(log, Zstd.chainLogMax())));
+			zos.setDict(dictionary);
+			try (FileInputStream in = new FileInputStream(source)) {
+				in.transferTo(zos);
+			}
+		}
+	}
+
+	/**
+	 * @return the window log of a patch from a base to a source of the given sizes
+	 */
+	public static int patchWindowLog(long baseSize, long sourceSize) {
+		return Math.max(Zstd.windowLogMin(), Math.min(log2(baseSize + sourceSize), Zstd.windowLogMax()));
+	}
+
+	/**
+	 * @return the estimated memory needed by {@link #patch(File, File, File, int)}
+	 */
+	public static long estimatePatchMemory(long baseSize, long sourceSize) {
+		int log = log2(baseSize);
+		return baseSize + (1L << patchWindowLog(baseSize, sourceSize)) + (4L << (log - 2)) + (8L << log);
+	}
+
+	private static int log2(long size) {
+		return 64 - Long.numberOfLeadingZeros(Math.max(1, size - 1));
+	}
+
+	/**
+	 * Archive the entries of the source directory which are new or different from the base directory, in the same
+	 * format as {@link #compress(File, File, CompressionSettings)}. Extracting it over the base and removing
+	 * the {@link #removedEntries(File, File)} results in the source directory.
+	 */
+	public static void compressChanges(File base, File source, File target, CompressionSettings settings)
+			throws IOException {
+		try (Archive archive = new Archive(compressedStream(create(target), settings), settings,
+				hardLinks(source, settings))) {
+			Path basePath = base.toPath();
+			TreeWalker.walk(source.toPath(), true, (path, name, linked) -> {
+				if (!isUnchanged(basePath.resolve(name), path)) {
+					addToArchive(archive, path.toFile(), name, null);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the paths of the entries of the base directory which do not exist in the source directory, including
+	 * the files replaced by a directory and the directories replaced by a file
+	 */
+	public static List<String> removedEntries(File base, File source) throws IOException {
+		List<String> removed = new ArrayList<>();
+		Path sourcePath = source.toPath();
+		TreeWalker.walk(base.toPath(), true, (path, name, linked) -> {
+			Path sourceEntry = sourcePath.resolve(name);
+			if (!Files.exists(sourceEntry, LinkOption.NOFOLLOW_LINKS) || Files.isDirectory(sourceEntry)) {
+				String replaced = replacedDirectory(sourcePath, name);
+				if (replaced == null) {
+					removed.add(name);
+				} else if (removed.isEmpty() || !removed.get(removed.size() - 1).equals(replaced)) {
+					removed.add(replaced);
+				}
+			}
+		});
+		return removed;
+	}
+
+	// the parent directory of the entry which is not a directory in the source
+	private static String replacedDirectory(Path source, String name) {
+		for (int i = name.indexOf('/'); i >= 0; i = name.indexOf('/', i + 1)) {
+			String parent = name.substring(0, i);
+			Path sourceEntry = source.resolve(parent);
+			if (!Files.exists(sourceEntry, LinkOption.NOFOLLOW_LINKS)) {
+				return null;
+			}
+			if (!Files.isDirectory(sourceEntry)) {
+				return parent;
+			}
+		}
+		return null;
+	}
+
+	private static boolean isUnchanged(Path base, Path source) throws IOException {
+		if (Files.isSymbolicLink(source)) {
+			return Files.isSymbolicLink(base) && Files.readSymbolicLink(base).equals(Files.readSymbolicLink(source));
+		}
+		return Files.isRegularFile(base, LinkOption.NOFOLLOW_LINKS) && Files.size(base) == Files.size(source)
+				&& Files.mismatch(base, source) == -1;
+	}
+
+	/**
+	 * Train a zstd dictionary from the beginning of the files below the sources, sampling about the same amount of
+	 * data from every source.
+	 * @param sources the files or directories to sample
+	 * @param dictionarySize the maximum size of the dictionary in bytes
+	 * @return the dictionary or null if there are not enough samples to train one
+	 */
+	public static byte[] trainDictionary(List<File> sources, int dictionarySize) throws IOException {
+		int budget = (int) Math.min((long) dictionarySize * SAMPLES_PER_DICTIONARY_BYTE, MAX_SAMPLES_SIZE);
+		ZstdDictTrainer trainer = new ZstdDictTrainer(budget, dictionarySize);
+		long perSource = budget / Math.max(1, sources.size());
+		for (File source : sources) {
+			long[] remaining = {perSource};
+			TreeWalker.Visitor visitor = (path, name, linked) -> {
+				if (remaining[0] > 0 && Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+					byte[] sample = readStart(path, (int) Math.min(remaining[0], MAX_SAMPLE_SIZE));
+					if (sample.length > 0 && trainer.addSample(sample)) {
+						remaining[0] -= sample.length;
+					}
+				}
+			};
+			if (source.isDirectory()) {
+				TreeWalker.walk(source.toPath(), false, visitor);
+			} else {
+				visitor.visit(source.toPath(), source.getName(), false);
+			}
+		}
+		try {
+			return trainer.trainSamples();
+		} catch (ZstdException e) {
+			// e.g. too few samples
+			return null;
+		}
+	}
+
+	/**
+	 * Take a sample of a component: evenly spaced parts of a file, or the start of every file in a directory.
+	 * @param source the file or directory
+	 * @param size the approximate size of the sample
+	 * @return the sample, the whole content if it is smaller than size
+	 */
+	public static byte[] sample(File source, int size) throws IOException {
+		ByteArrayOutputStream sample = new ByteArrayOutputStream();
+		if (source.isDirectory()) {
+			long[] count = {0};
+			TreeWalker.walk(source.toPath(), false, (path, name, linked) -> {
+				if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+					count[0]++;
+				}
+			});
+			int perFile = (int) Math.max(MIN_SAMPLE_PART, size / Math.max(1, count[0]));
+			TreeWalker.walk(source.toPath(), false, (path, name, linked) -> {
+				if (sample.size() < size && Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+					sample.write(readStart(path, Math.min(perFile, size - sample.size())));
+				}
+			});
 		} else {
-			entry = dir + "/" + file.getName();
+			try (FileChannel channel = FileChannel.open(source.toPath())) {
+				long fileSize = channel.size();
+				if (fileSize <= size) {
+					return Files.readAllBytes(source.toPath());
+				}
+				int parts = Math.max(1, size / MIN_SAMPLE_PART);
+				int partSize = size / parts;
+				ByteBuffer buffer = ByteBuffer.allocate(partSize);
+				for (int i = 0; i < parts; i++) {
+					buffer.clear();
+					long position = (fileSize - partSize) * i / Math.max(1, parts - 1);
+					while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+						// read the whole part
+					}
+					sample.write(buffer.array(), 0, buffer.position());
+				}
+			}
+		}
+		return sample.toByteArray();
+	}
+
+	/**
+	 * @return the size of the data compressed with the settings
+	 */
+	public static long compressedSize(byte[] data, CompressionSettings settings) throws IOException {
+		CountingOutputStream counter = new CountingOutputStream(NullOutputStream.INSTANCE);
+		try (OutputStream out = compressedStream(Channels.newChannel(counter), settings)) {
+			out.write(data);
+		}
+		return counter.getByteCount();
+	}
+
+	/**
+	 * @return the size of the archive of the directory compressed with the settings, but in the given order
+	 */
+	public static long compressedSize(File directory, CompressionSettings settings, EntryOrder order)
+			throws IOException {
+		CountingOutputStream counter = new CountingOutputStream(NullOutputStream.INSTANCE);
+		try (Archive archive = new Archive(compressedStream(Channels.newChannel(counter), settings), settings,
+				hardLinks(directory, settings))) {
+			addToArchive(archive, directory, null, order);
+		}
+		return counter.getByteCount();
+	}
+
+	/**
+	 * Write the index of a seekable archive, see {@link CompressionSettings#setFrameSize(int)}: one line
+	 * "path\tframe\toffset\tsize" per file, where offset is the position of the content in the decompressed frame.
+	 * Larger content continues in the following frames. Hard links get the location of the file they link to,
+	 * symbolic links have no content and are not listed.
+	 * @param archive the seekable archive
+	 * @param index the index file
+	 */
+	public static void writeFrameIndex(File archive, File index) throws IOException {
+		long[] starts = frameStarts(archive);
+		Map<String, String> locations = new HashMap<>();
+		try (BoundedInputStream counter = BoundedInputStream.builder()
+				.setInputStream(new ZstdInputStream(new BufferedInputStream(Files.newInputStream(archive.toPath()))))
+				.get();
+			 TarArchiveInputStream tar = new TarArchiveInputStream(counter);
+			 Writer out = Files.newBufferedWriter(index.toPath(), StandardCharsets.UTF_8)) {
+			for (TarArchiveEntry entry = tar.getNextEntry(); entry != null; entry = tar.getNextEntry()) {
+				String location;
+				if (entry.isLink()) {
+					location = locations.get(entry.getLinkName());
+				} else if (entry.isFile()) {
+					// the header has been read, the content starts here
+					long offset = counter.getCount();
+					int frame = Arrays.binarySearch(starts, offset);
+					frame = frame >= 0 ? frame : -frame - 2;
+					location = frame + "\t" + (offset - starts[frame]) + "\t" + entry.getSize();
+				} else {
+					continue;
+				}
+				locations.put(entry.getName(), location);
+				out.write(entry.getName() + "\t" + location + "\n");
+			}
+		}
+	}
+
+	/**
+	 * @return the number of frames listed in the seek table of a seekable archive
+	 */
+	public static int frameCount(File archive) throws IOException {
+		return frameStarts(archive).length;
+	}
+
+	/**
+	 * @return whether the file ends with the seek table of the zstd seekable format
+	 */
+	public static boolean isSeekable(File file) throws IOException {
+		if (file.length() < ZstdDirectOutputStream.SEEK_TABLE_FOOTER_SIZE) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			return readFooter(channel).getInt(5) == ZstdDirectOutputStream.SEEKABLE_MAGIC;
+		}
+	}
+
+	// the decompressed positions at which the frames start
+	private static long[] frameStarts(File archive) throws IOException {
+		try (FileChannel channel = FileChannel.open(archive.toPath())) {
+			ByteBuffer footer = readFooter(channel);
+			if (footer.getInt(5) != ZstdDirectOutputStream.SEEKABLE_MAGIC) {
+				throw new IOException(archive + " has no seek table");
+			}
+			int frames = footer.getInt(0);
+			// the entries contain a checksum if the highest bit of the descriptor is set
+			int entrySize = (footer.get(4) & 0x80) != 0 ? 12 : 8;
+			ByteBuffer table = ByteBuffer.allocate(frames * entrySize).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(channel, table, channel.size() - ZstdDirectOutputStream.SEEK_TABLE_FOOTER_SIZE - table.capacity());
+			long[] starts = new long[frames];
+			long start = 0;
+			for (int i = 0; i < frames; i++) {
+				starts[i] = start;
+				start += Integer.toUnsignedLong(table.getInt(i * entrySize + 4));
+			}
+			return starts;
+		}
+	}
+
+	private static ByteBuffer readFooter(FileChannel channel) throws IOException {
+		ByteBuffer footer = ByteBuffer.allocate(ZstdDirectOutputStream.SEEK_TABLE_FOOTER_SIZE)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, footer, channel.size() - footer.capacity());
+		return footer;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new EOFException();
+			}
+		}
+	}
+
+	/**
+	 * @param file a zstd compressed file
+	 * @return the ID of the dictionary the first frame was compressed with or 0 without a dictionary
+	 */
+	public static long dictionaryId(File file) throws IOException {
+		byte[] header = readStart(file.toPath(), ZSTD_MAX_FRAME_HEADER_SIZE);
+		return Zstd.getDictIdFromFrame(header);
+	}
+
+	private static byte[] readStart(Path path, int length) throws IOException {
+		try (InputStream in = Files.newInputStream(path)) {
+			return in.readNBytes(length);
+		}
+	}
+
+	private static void addToArchive(Archive archive, File directory, HashUtils.Index index, EntryOrder order)
+			throws IOException {
+		addToArchive(archive, directory, index, order, name -> true);
+	}
+
+	// entries are added in the order of their paths, the same order as in the index of HashUtils
+	private static void addToArchive(Archive archive, File directory, HashUtils.Index index, EntryOrder order,
+			Predicate<String> filter) throws IOException {
+		if (order == EntryOrder.PATH) {
+			// the index only contains the files HashUtils would hash, so none below symbolic links to directories
+			TreeWalker.walk(directory.toPath(), true, (path, name, linked) -> {
+				if (filter.test(name)) {
+					addToArchive(archive, path.toFile(), name, linked ? null : index);
+				}
+			});
+			return;
+		}
+		List<Entry> entries = new ArrayList<>();
+		TreeWalker.walk(directory.toPath(), true, (path, name, linked) -> {
+			if (filter.test(name)) {
+				entries.add(new Entry(path, name, linked));
+			}
+		});
+		entries.sort(Comparator.comparing((Entry entry) -> entry.extension).thenComparing(entry -> entry.name));
+		for (Entry entry : entries) {
+			addToArchive(archive, entry.path.toFile(), entry.name, entry.linked ? null : index);
 		}
+	}
+
+	private static class Entry {
+		private final Path path;
+		private final String name;
+		private final boolean linked;
+		private final String extension;
+
+		private Entry(Path path, String name, boolean linked) {
+			this.path = path;
+			this.name = name;
+			this.linked = linked;
+			String fileName = path.getFileName().toString();
+			int dot = fileName.lastIndexOf('.');
+			extension = dot > 0 ? fileName.substring(dot + 1).toLowerCase(Locale.ROOT) : "";
+		}
+	}
+
+	private static HardLinks hardLinks(File directory, CompressionSettings settings) throws IOException {
+		if (settings.getHardLinks() == null) {
+			return null;
+		}
+		return new HardLinks(directory.toPath(), settings.getHardLinks(), settings.getHashCache());
+	}
+
+	// based on https://memorynotfound.com/java-tar-example-compress-decompress-tar-tar-gz-files/
+	private static void addToArchive(Archive archive, File file, String entry, HashUtils.Index index)
+			throws IOException {
+		HardLinks hardLinks = archive.hardLinks;
 		if (file.isFile()) {
 			if (Files.isSymbolicLink(file.toPath())) {
 				TarArchiveEntry symLinkEntry = new TarArchiveEntry(entry, TarConstants.LF_SYMLINK);
 				symLinkEntry.setLinkName(Files.readSymbolicLink(file.toPath()).toString());
 				symLinkEntry.setUserId(0);
 				symLinkEntry.setGroupId(0);
-				out.putArchiveEntry(symLinkEntry);
+				if (archive.reproducible) {
+					normalize(symLinkEntry);
+				}
+				archive.putArchiveEntry(symLinkEntry);
+				if (index != null) {
+					index.add(entry, HashUtils.hashSymbolicLink(index.getHashAlgorithm(), file.toPath()));
+				}
 			} else {
-				TarArchiveEntry tarEntry = new TarArchiveEntry(file, entry);
+				String hash = hardLinks != null ? hardLinks.hash(file.toPath(), entry) : null;
+				String linkName = hash != null ? hardLinks.link(entry, hash) : null;
+				TarArchiveEntry tarEntry;
+				if (linkName != null) {
+					tarEntry = new TarArchiveEntry(entry, TarConstants.LF_LINK);
+					tarEntry.setLinkName(linkName);
+				} else {
+					tarEntry = new TarArchiveEntry(file, entry);
+				}
 				tarEntry.setUserId(0);
 				tarEntry.setGroupId(0);
-				out.putArchiveEntry(tarEntry);
-				try (FileInputStream in = new FileInputStream(file)) {
-					IOUtils.copy(in, out);
+				if (archive.reproducible) {
+					normalize(tarEntry);
 				}
-				out.closeArchiveEntry();
-			}
-		} else if (file.isDirectory()) {
-			File[] children = file.listFiles();
-			if (children != null) {
-				for (File child : children) {
-					addToArchive(out, child, entry);
+				archive.putArchiveEntry(tarEntry);
+				if (linkName == null && archive.cheapMode != null) {
+					archive.cheapMode.set(IncompressibleDetector.isIncompressible(file.toPath(), file.length()));
+				}
+				if (linkName == null && index != null && hash == null) {
+					Digest digest = HashUtils.createDigest(index.getHashAlgorithm());
+					archive.write(file.toPath(), tarEntry.getSize(), digest);
+					hash = HashUtils.toHex(digest);
+				} else if (linkName == null) {
+					archive.write(file.toPath(), tarEntry.getSize(), null);
+				}
+				if (index != null) {
+					// the hard links use the algorithm of the index
+					index.add(entry, hash);
+					index.addSize(file.length());
 				}
 			}
 		} else {
 			throw new UnsupportedOperationException(file + " is not supported");
 		}
 	}
+
+	/**
+	 * A tar stream and the options for the files added to it. Only the headers are written with
+	 * {@link TarArchiveOutputStream}, the content of the files is copied to the stream directly.
+	 */
+	private static class Archive implements Closeable {
+		private static final int RECORD_SIZE = TarConstants.DEFAULT_RCDSIZE;
+		private static final byte[] ZEROS = new byte[RECORD_SIZE];
+
+		private final OutputStream out;
+		private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+		private final TarArchiveOutputStream headers = new TarArchiveOutputStream(header);
+		private final FileCopier copier;
+		private final boolean reproducible;
+		private final HardLinks hardLinks;
+		// null to compress all files the same way
+		private final CheapMode cheapMode;
+
+		/**
+		 * An uncompressed archive.
+		 */
+		private Archive(OutputStream out, boolean reproducible) {
+			this(out, reproducible, null, null);
+		}
+
+		/**
+		 * @param compressor the stream created by {@link #compressedStream(WritableByteChannel, CompressionSettings)}
+		 */
+		private Archive(OutputStream compressor, CompressionSettings settings, HardLinks hardLinks) {
+			this(settings.isSkipIncompressible() && compressor instanceof XZOutputStream
+							? new RecordOutputStream(compressor) : compressor,
+					settings.isReproducible(), hardLinks,
+					settings.isSkipIncompressible() ? new CheapMode(compressor, settings) : null);
+		}
+
+		private Archive(OutputStream out, boolean reproducible, HardLinks hardLinks, CheapMode cheapMode) {
+			this.out = out;
+			this.headers.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+			this.copier = new FileCopier(out);
+			this.reproducible = reproducible;
+			this.hardLinks = hardLinks;
+			this.cheapMode = cheapMode;
+		}
+
+		/**
+		 * Write the header of an entry, including the PAX headers it needs.
+		 */
+		void putArchiveEntry(TarArchiveEntry entry) throws IOException {
+			// the previous entries are never closed, the stream does not see their content
+			headers.putArchiveEntry(entry);
+			header.writeTo(out);
+			header.reset();
+		}
+
+		/**
+		 * Write the content of the current entry and pad it to a full record.
+		 */
+		void write(Path file, long size, Digest digest) throws IOException {
+			long length = copier.copy(file, digest);
+			if (length != size) {
+				throw new IOException(file + " changed while it was archived");
+			}
+			out.write(ZEROS, 0, (int) ((RECORD_SIZE - length % RECORD_SIZE) % RECORD_SIZE));
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				// two empty records mark the end of the archive
+				out.write(ZEROS);
+				out.write(ZEROS);
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Passes the data on in single tar records. XZOutputStream corrupts uncompressed chunks if a write spans the end
+	 * of a chunk, which records never do as they are aligned and the chunks are a multiple of their size.
+	 */
+	private static class RecordOutputStream extends FilterOutputStream {
+		private RecordOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			for (int end = off + len; off < end; off += TarConstants.DEFAULT_RCDSIZE) {
+				out.write(b, off, Math.min(TarConstants.DEFAULT_RCDSIZE, end - off));
+			}
+		}
+	}
+
+	/**
+	 * Copies files to a stream through one buffer, a direct buffer for {@link ZstdDirectOutputStream} so the data
+	 * is not copied on the heap.
+	 */
+	private static class FileCopier {
+		private final OutputStream out;
+		private final ByteBuffer buffer;
+		// the data for digests if the buffer is direct
+		private byte[] array;
+
+		private FileCopier(OutputStream out) {
+			this.out = out;
+			this.buffer = out instanceof ZstdDirectOutputStream
+					? ByteBuffer.allocateDirect(BUFFER_SIZE) : ByteBuffer.allocate(BUFFER_SIZE);
+		}
+
+		/**
+		 * @param digest receives the data too, or null
+		 * @return the number of bytes copied
+		 */
+		long copy(Path file, Digest digest) throws IOException {
+			long length = 0;
+			try (FileChannel channel = FileChannel.open(file)) {
+				while (channel.read(buffer.clear()) != -1) {
+					buffer.flip();
+					length += buffer.remaining();
+					if (digest != null) {
+						update(digest);
+					}
+					if (out instanceof ZstdDirectOutputStream) {
+						((ZstdDirectOutputStream) out).write(buffer);
+					} else {
+						out.write(buffer.array(), 0, buffer.limit());
+					}
+				}
+			}
+			return length;
+		}
+
+		private void update(Digest digest) {
+			if (buffer.hasArray()) {
+				digest.update(buffer.array(), 0, buffer.limit());
+				return;
+			}
+			if (array == null) {
+				array = new byte[buffer.capacity()];
+			}
+			buffer.duplicate().get(array, 0, buffer.limit());
+			digest.update(array, 0, buffer.limit());
+		}
+	}
+
+	/**
+	 * Switches a compressor between its settings and a cheap mode for incompressible content: zstd starts a new frame
+	 * at a fast level, xz a new block with uncompressed chunks. The frames or blocks decompress as one stream.
+	 * LZ4 has no cheap mode and keeps its settings.
+	 */
+	private static class CheapMode {
+		private final OutputStream compressor;
+		private final CompressionSettings settings;
+		private boolean cheap;
+
+		private CheapMode(OutputStream compressor, CompressionSettings settings) {
+			this.compressor = compressor;
+			this.settings = settings;
+		}
+
+		void set(boolean cheap) throws IOException {
+			if (cheap == this.cheap) {
+				return;
+			}
+			this.cheap = cheap;
+			if (compressor instanceof ZstdDirectOutputStream) {
+				// starts a new frame, the level can only be changed between frames
+				((ZstdDirectOutputStream) compressor).setLevel(cheap ? CHEAP_ZSTD_LEVEL : settings.getLevel());
+			} else if (compressor instanceof XZOutputStream) {
+				XZOutputStream xos = (XZOutputStream) compressor;
+				xos.endBlock();
+				LZMA2Options options = new LZMA2Options(settings.getLevel());
+				if (cheap) {
+					options.setMode(LZMA2Options.MODE_UNCOMPRESSED);
+				}
+				xos.updateFilters(options);
+			}
+		}
+	}
+
+	private static void normalize(TarArchiveEntry entry) {
+		entry.setModTime(REPRODUCIBLE_MOD_TIME);
+		entry.setUserName("");
+		entry.setGroupName("");
+	}
 }
@@ -0,0 +1,213 @@
+package xyz.wismer.nativestart.packer.util;
+
+import com.github.luben.zstd.Zstd;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.UnsupportedOptionsException;
+import xyz.wismer.nativestart.packer.CompressionAlgorithm;
+import xyz.wismer.nativestart.packer.EntryOrder;
+import xyz.wismer.nativestart.packer.HashAlgorithm;
+
+/**
+ * The settings used by {@link CompressUtils} to compress a component.
+ */
+public class CompressionSettings {
+	private final CompressionAlgorithm algorithm;
+	private final int level;
+
+	/**
+	 * The number of threads compressing in parallel (ZSTD only), 0 to compress on the calling thread.
+	 */
+	private int workers;
+
+	/**
+	 * The zstd dictionary to compress with (ZSTD only), null to compress without one.
+	 */
+	private byte[] dictionary;
+
+	/**
+	 * Whether to write the same bytes for the same files on every machine, see {@link #setReproducible(boolean)}.
+	 */
+	private boolean reproducible;
+
+	/**
+	 * The order of the files in the archives of directories.
+	 */
+	private EntryOrder entryOrder = EntryOrder.PATH;
+
+	/**
+	 * Whether to store the incompressible files of directories with a cheap mode of the compressor.
+	 */
+	private boolean skipIncompressible;
+
+	/**
+	 * The algorithm to find the files of a directory with the same content as an earlier file, which are archived
+	 * as hard links to it, null to archive every file completely.
+	 */
+	private HashAlgorithm hardLinks;
+
+	/**
+	 * The cache of the hashes used to find files with the same content, can be null.
+	 */
+	private HashCache hashCache;
+
+	/**
+	 * The maximum decompressed size of the frames of seekable archives (ZSTD only), 0 to write one frame.
+	 */
+	private int frameSize;
+
+	public CompressionSettings(CompressionAlgorithm algorithm, int level) {
+		this.algorithm = algorithm;
+		this.level = level;
+	}
+
+	public CompressionAlgorithm getAlgorithm() {
+		return algorithm;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	public int getWorkers() {
+		return workers;
+	}
+
+	public void setWorkers(int workers) {
+		this.workers = workers;
+	}
+
+	public byte[] getDictionary() {
+		return dictionary;
+	}
+
+	public void setDictionary(byte[] dictionary) {
+		this.dictionary = dictionary;
+	}
+
+	public boolean isReproducible() {
+		return reproducible;
+	}
+
+	/**
+	 * Write archives which only depend on the paths and contents of the files: the entries get a fixed
+	 * modification time and no owner names, and zstd always writes the frames of multi-threaded compression,
+	 * which do not depend on the number of workers.
+	 */
+	public void setReproducible(boolean reproducible) {
+		this.reproducible = reproducible;
+	}
+
+	public EntryOrder getEntryOrder() {
+		return entryOrder;
+	}
+
+	public void setEntryOrder(EntryOrder entryOrder) {
+		this.entryOrder = entryOrder;
+	}
+
+	public boolean isSkipIncompressible() {
+		return skipIncompressible;
+	}
+
+	/**
+	 * Detect the incompressible files of directories, like images and archives, and compress them with a cheap mode:
+	 * zstd starts a new frame with a fast level, xz a new block with uncompressed chunks. The content compressed after
+	 * the switch cannot refer to the content before it.
+	 */
+	public void setSkipIncompressible(boolean skipIncompressible) {
+		this.skipIncompressible = skipIncompressible;
+	}
+
+	public HashAlgorithm getHardLinks() {
+		return hardLinks;
+	}
+
+	public void setHardLinks(HashAlgorithm hardLinks) {
+		this.hardLinks = hardLinks;
+	}
+
+	public HashCache getHashCache() {
+		return hashCache;
+	}
+
+	public void setHashCache(HashCache hashCache) {
+		this.hashCache = hashCache;
+	}
+
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	/**
+	 * Write zstd archives in the zstd seekable format: independent frames of at most the given decompressed size and
+	 * a seek table after them, which decompressors not knowing the format skip. The frames can be decompressed in
+	 * parallel or alone, at the cost of the matches across them.
+	 * @param frameSize the maximum decompressed size of a frame, 0 to write one frame
+	 */
+	public void setFrameSize(int frameSize) {
+		this.frameSize = frameSize;
+	}
+
+	/**
+	 * Copy the options for the archives of directories, which do not depend on the algorithm and level.
+	 */
+	void copyArchiveOptions(CompressionSettings other) {
+		reproducible = other.reproducible;
+		entryOrder = other.entryOrder;
+		skipIncompressible = other.skipIncompressible;
+		hardLinks = other.hardLinks;
+		hashCache = other.hashCache;
+		frameSize = other.frameSize;
+	}
+
+	/**
+	 * @return the number of zstd workers actually used
+	 */
+	int getZstdWorkers() {
+		return reproducible ? Math.max(1, workers) : workers;
+	}
+
+	/**
+	 * @return the ID of the dictionary as stored in the zstd frame headers, 0 without a dictionary
+	 */
+	public long getDictionaryId() {
+		return dictionary != null ? Zstd.getDictIdFromDict(dictionary) : 0;
+	}
+
+	/**
+	 * Estimate the memory used by the native encoder to compress one stream with these settings.
+	 * @return the estimated memory in bytes
+	 */
+	public long estimateMemory() {
+		switch (algorithm) {
+			case XZ:
+				try {
+					return new LZMA2Options(level).getEncoderMemoryUsage() * 1024L;
+				} catch (UnsupportedOptionsException e) {
+					throw new IllegalArgumentException("Unsupported XZ level " + level, e);
+				}
+			case ZSTD:
+				// window, hash and chain log of the zstd defaults for large inputs
+				int[] logs = ZSTD_PARAMETERS[Math.max(1, Math.min(level, ZSTD_PARAMETERS.length - 1))];
+				long window = 1L << logs[0];
+				long tables = (4L << logs[1]) + (4L << logs[2]);
+				int workers = getZstdWorkers();
+				if (workers > 0) {
+					// every worker has its own tables and a job buffer of about 4 windows
+					return workers * (tables + 4 * window) + window;
+				}
+				return tables + 2 * window;
+			case LZ4:
+				// the 4 MiB block, its compressed copy and the hash tables
+				return 9L << 20;
+		}
+		throw new IllegalArgumentException("Unknown compression algorithm");
+	}
+
+	private static final int[][] ZSTD_PARAMETERS = {
+			{}, {19, 12, 13}, {19, 13, 14}, {20, 15, 16}, {20, 16, 17}, {21, 18, 18}, {21, 18, 19}, {21, 18, 19},
+			{21, 19, 20}, {21, 19, 20}, {22, 20, 21}, {22, 21, 22}, {22, 21, 22}, {22, 21, 22}, {22, 22, 23},
+			{22, 23, 23}, {22, 22, 22}, {23, 23, 22}, {23, 23, 22}, {23, 24, 22}, {25, 25, 23}, {26, 26, 24},
+			{27, 27, 25}
+	};
+}
@@ -0,0 +1,63 @@
+package xyz.wismer.nativestart.packer.util;
+
+import xyz.wismer.nativestart.packer.HashAlgorithm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the files of a tree with the same content as a file archived before, so they can be archived as hard links
+ * to it. Only the files with the size of another file are hashed, taking the hashes from the cache if possible.
+ */
+class HardLinks {
+	private final HashAlgorithm hashAlgorithm;
+	private final HashCache cache;
+	private final Set<Long> repeatedSizes = new HashSet<>();
+	private final Map<String, String> archived = new HashMap<>();
+
+	HardLinks(Path root, HashAlgorithm hashAlgorithm, HashCache cache) throws IOException {
+		this.hashAlgorithm = hashAlgorithm;
+		this.cache = cache;
+		Set<Long> sizes = new HashSet<>();
+		TreeWalker.walk(root, true, (path, name, linked) -> {
+			if (!Files.isSymbolicLink(path)) {
+				long size = Files.size(path);
+				// an empty file is as small as a hard link
+				if (size > 0 && !sizes.add(size)) {
+					repeatedSizes.add(size);
+				}
+			}
+		});
+	}
+
+	HashAlgorithm getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	/**
+	 * @param path the file
+	 * @param name the path relative to the root, separated by "/"
+	 * @return the hash of the file or null if no other file has its size
+	 */
+	String hash(Path path, String name) throws IOException {
+		if (!repeatedSizes.contains(Files.size(path))) {
+			return null;
+		}
+		return HashUtils.hashFile(hashAlgorithm, name, path, cache, null);
+	}
+
+	/**
+	 * Get the entry archived before with the same content, or remember the entry if there is none.
+	 * @param name the entry
+	 * @param hash the hash of its content
+	 * @return the name of the earlier entry or null
+	 */
+	String link(String name, String hash) {
+		return archived.putIfAbsent(hash, name);
+	}
+}
@@ -0,0 +1,134 @@
+package xyz.wismer.nativestart.packer.util;
+
+import xyz.wismer.nativestart.packer.HashAlgorithm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent cache of file hashes. An entry is only used if the path (relative to the directory for the files of
+ * a directory, canonical for single files), size, modification time and file key of the file are unchanged, so a
+ * cache hit costs a single stat instead of reading the file.
+ * <p>
+ * The cache file can be shared between builds: it is replaced atomically and merged with the entries written by
+ * other builds in the meantime. Entries which were read but not used since are dropped, so the cache does not grow
+ * with outdated files.
+ */
+public class HashCache {
+	private static final String HEADER = "# nativestart hash cache v1";
+	// files modified this recently might change again within the resolution of the modification time
+	private static final long MIN_AGE_MILLIS = 2000;
+
+	private final Path file;
+	private final Map<String, String> entries = new ConcurrentHashMap<>();
+	private final Map<String, String> added = new ConcurrentHashMap<>();
+	// the keys read from the file and the ones of them used since
+	private final Set<String> loaded;
+	private final Set<String> used = ConcurrentHashMap.newKeySet();
+
+	public HashCache(File file) throws IOException {
+		this.file = file.toPath();
+		entries.putAll(read(this.file));
+		loaded = ConcurrentHashMap.newKeySet();
+		loaded.addAll(entries.keySet());
+	}
+
+	String get(HashAlgorithm hashAlgorithm, String path, BasicFileAttributes attributes) {
+		String key = key(hashAlgorithm, path, attributes);
+		if (key == null) {
+			return null;
+		}
+		String hash = entries.get(key);
+		if (hash != null) {
+			used.add(key);
+		}
+		return hash;
+	}
+
+	void put(HashAlgorithm hashAlgorithm, String path, BasicFileAttributes attributes, String hash) {
+		String key = key(hashAlgorithm, path, attributes);
+		if (key != null && attributes.lastModifiedTime().toMillis() < System.currentTimeMillis() - MIN_AGE_MILLIS) {
+			entries.put(key, hash);
+			added.put(key, hash);
+		}
+	}
+
+	/**
+	 * Write the entries added since the last save to the cache file and drop the entries read before which were
+	 * not used.
+	 */
+	public synchronized void save() throws IOException {
+		Map<String, String> merged = new TreeMap<>(read(file));
+		boolean pruned = merged.keySet().removeIf(key -> loaded.contains(key) && !used.contains(key));
+		if (added.isEmpty() && !pruned) {
+			return;
+		}
+		merged.putAll(added);
+		Path directory = file.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+		try {
+			try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+				writer.write(HEADER);
+				writer.write('\n');
+				for (Map.Entry<String, String> entry : merged.entrySet()) {
+					writer.write(entry.getKey());
+					writer.write('\t');
+					writer.write(entry.getValue());
+					writer.write('\n');
+				}
+			}
+			try {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		added.clear();
+	}
+
+	private static Map<String, String> read(Path file) throws IOException {
+		Map<String, String> result = new TreeMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			if (!HEADER.equals(reader.readLine())) {
+				// unknown format, start from scratch
+				return result;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int separator = line.lastIndexOf('\t');
+				if (separator > 0) {
+					result.put(line.substring(0, separator), line.substring(separator + 1));
+				}
+			}
+		} catch (NoSuchFileException e) {
+			// no cache yet
+		}
+		return result;
+	}
+
+	private static String key(HashAlgorithm hashAlgorithm, String path, BasicFileAttributes attributes) {
+		if (path.indexOf('\t') >= 0 || path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+			return null;
+		}
+		Object fileKey = attributes.fileKey();
+		return hashAlgorithm.name() + "\t" + path + "\t" + attributes.size() + "\t"
+				+ attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS) + "\t" + (fileKey != null ? fileKey : "-");
+	}
+}
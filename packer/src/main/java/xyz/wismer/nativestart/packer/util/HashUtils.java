@@ -2,90 +2,230 @@ package xyz.wismer.nativestart.packer.util;
 
 import org.bouncycastle.crypto.Digest;
 import org.bouncycastle.crypto.digests.Blake3Digest;
-import org.bouncycastle.crypto.digests.SHA256Digest;
 import xyz.wismer.nativestart.packer.HashAlgorithm;
 
-import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.Signature;
 import java.security.SignatureException;
-import java.util.List;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
 
 public class HashUtils {
+	private static final int BUFFER_SIZE = 256 * 1024;
+	private static final long MAPPING_THRESHOLD = 32 * 1024 * 1024;
+	private static final long MAPPING_SIZE = 256 * 1024 * 1024;
+	private static final long PARALLEL_THRESHOLD = 8 * 1024 * 1024;
+	private static final int PENDING_PER_THREAD = 4;
 
 	public static Info hash(HashAlgorithm hashAlgorithm, File file) throws IOException {
+		return hash(hashAlgorithm, file, 1);
+	}
+
+	/**
+	 * Hash a file or directory. The files of a directory and the subtrees of big files (BLAKE3 only) are hashed
+	 * concurrently by the given number of threads, the result is the same as for a single thread.
+	 */
+	public static Info hash(HashAlgorithm hashAlgorithm, File file, int threads) throws IOException {
+		return hash(hashAlgorithm, file, threads, null);
+	}
+
+	/**
+	 * Hash a file or directory like {@link #hash(HashAlgorithm, File, int)}, but take the hashes of unchanged files
+	 * from the given cache (can be null).
+	 */
+	public static Info hash(HashAlgorithm hashAlgorithm, File file, int threads, HashCache cache) throws IOException {
 		if (file.isFile()) {
-			try (InputStream stream = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
-				return new Info(file.length(), hashStream(hashAlgorithm, stream));
+			// unlike the files of a directory, a single file is cached by its full path
+			String name = file.getCanonicalPath();
+			if (threads <= 1) {
+				return new Info(file.length(), hashFile(hashAlgorithm, name, file.toPath(), cache, null));
 			}
-		} else if (file.isDirectory()) {
-			try (Stream<Path> paths = Files.walk(file.toPath())) {
-				List<Path> files = paths.collect(Collectors.toList());
-				long size = 0;
-				Map<String, String> hashes = new TreeMap<>();
-				for (Path f : files) {
-					if (f.toFile().isFile()) {
-						String filename = file.toPath().relativize(f).toString().replace("\\", "/");
-						if (Files.isSymbolicLink(f)) {
-							hashes.put(filename, hashStream(hashAlgorithm, new ByteArrayInputStream(
-									Files.readSymbolicLink(f).toString().getBytes(StandardCharsets.UTF_8))));
-						} else {
-							size += f.toFile().length();
-							hashes.put(filename, hash(hashAlgorithm, f.toFile()).getHash());
-						}
-					}
-				}
-				return new Info(size, hashIndex(hashAlgorithm, hashes));
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			try {
+				return new Info(file.length(), hashFile(hashAlgorithm, name, file.toPath(), cache, pool));
+			} finally {
+				pool.shutdownNow();
 			}
+		} else if (file.isDirectory()) {
+			return hashDirectory(hashAlgorithm, file.toPath(), name -> true, threads, cache);
 		} else if (!file.exists()) {
 			throw new IOException(file.getAbsolutePath() + " does not exist");
 		}
 		throw new IOException("Only files and directories are supported");
 	}
 
-	private static String hashStream(HashAlgorithm hashAlgorithm, InputStream input) throws IOException {
+	/**
+	 * Hash some of the files of a directory as if the directory only contained these files, like
+	 * {@link CompressUtils#compressAndHash(File, Set, File, CompressionSettings, HashAlgorithm)}.
+	 * @param entries the paths of the files relative to the directory, separated by "/"
+	 */
+	public static Info hash(HashAlgorithm hashAlgorithm, File directory, Set<String> entries, int threads,
+			HashCache cache) throws IOException {
+		if (!directory.isDirectory()) {
+			throw new IOException(directory.getAbsolutePath() + " is not a directory");
+		}
+		return hashDirectory(hashAlgorithm, directory.toPath(), entries::contains, threads, cache);
+	}
+
+	/**
+	 * Hash the files of a directory in the order of the index, so the index can be hashed while walking the tree.
+	 * At most a few files per thread are in flight, the memory used does not grow with the number of files.
+	 */
+	private static Info hashDirectory(HashAlgorithm hashAlgorithm, Path root, Predicate<String> filter, int threads,
+			HashCache cache) throws IOException {
+		Index index = new Index(hashAlgorithm);
+		// a fork join pool, so big files can be split into subtrees on the same threads
+		ForkJoinPool pool = threads > 1 ? new ForkJoinPool(threads) : null;
+		Deque<Pending> pending = new ArrayDeque<>();
+		try {
+			TreeWalker.walk(root, false, (path, name, linked) -> {
+				if (!filter.test(name) || !path.toFile().isFile()) {
+					return;
+				}
+				if (Files.isSymbolicLink(path)) {
+					pending.add(new Pending(name, CompletableFuture.completedFuture(hashSymbolicLink(hashAlgorithm, path))));
+				} else {
+					index.addSize(path.toFile().length());
+					if (pool == null) {
+						pending.add(new Pending(name, CompletableFuture.completedFuture(
+								hashFile(hashAlgorithm, name, path, cache, null))));
+					} else {
+						pending.add(new Pending(name, pool.submit(() -> hashFile(hashAlgorithm, name, path, cache, pool))));
+					}
+				}
+				while (pending.size() > PENDING_PER_THREAD * threads) {
+					Pending first = pending.removeFirst();
+					index.add(first.name, get(first.hash));
+				}
+			});
+			for (Pending file : pending) {
+				index.add(file.name, get(file.hash));
+			}
+		} finally {
+			if (pool != null) {
+				pool.shutdownNow();
+			}
+		}
+		return index.toInfo();
+	}
+
+	private static String get(Future<String> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Hashing was interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	static String hashFile(HashAlgorithm hashAlgorithm, String name, Path file, HashCache cache,
+			ForkJoinPool pool) throws IOException {
+		if (cache == null) {
+			return hashFile(hashAlgorithm, file, pool);
+		}
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		String hash = cache.get(hashAlgorithm, name, attributes);
+		if (hash == null) {
+			hash = hashFile(hashAlgorithm, file, pool);
+			cache.put(hashAlgorithm, name, attributes, hash);
+		}
+		return hash;
+	}
+
+	/**
+	 * Hash a file, choosing the way to read it by its size: small files are read at once, medium files through
+	 * a large buffer and big files are memory mapped, or split into subtrees hashed by the pool for BLAKE3.
+	 */
+	private static String hashFile(HashAlgorithm hashAlgorithm, Path file, ForkJoinPool pool) throws IOException {
 		Digest digest = createDigest(hashAlgorithm);
-		byte[] buffer = new byte[4 * 1024];
-		int len;
-		while (-1 != (len = input.read(buffer))) {
-			digest.update(buffer, 0, len);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (hashAlgorithm == HashAlgorithm.BLAKE3_VECTOR) {
+				return toHex(Blake3.hash(channel, size, size >= PARALLEL_THRESHOLD ? pool : null, true));
+			} else if (hashAlgorithm == HashAlgorithm.BLAKE3
+					&& (pool != null && size >= PARALLEL_THRESHOLD || size >= MAPPING_THRESHOLD)) {
+				// the BouncyCastle digest only takes arrays, the subtrees are read into arrays without mapping
+				return toHex(Blake3.hash(channel, size, size >= PARALLEL_THRESHOLD ? pool : null, false));
+			} else if (size <= BUFFER_SIZE) {
+				ByteBuffer buffer = ByteBuffer.allocate((int) size);
+				readFully(channel, buffer);
+				digest.update(buffer.array(), 0, buffer.position());
+			} else if (size < MAPPING_THRESHOLD) {
+				ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+				while (channel.read(buffer) != -1) {
+					digest.update(buffer.array(), 0, buffer.position());
+					buffer.clear();
+				}
+			} else {
+				for (long position = 0; position < size; position += MAPPING_SIZE) {
+					MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position,
+							Math.min(MAPPING_SIZE, size - position));
+					((JdkDigest) digest).update(mapped);
+				}
+			}
 		}
 		return toHex(digest);
 	}
 
-	private static String hashIndex(HashAlgorithm hashAlgorithm, Map<String, String> hashes) {
+	private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+			// continue until the buffer is full or the end of the file is reached
+		}
+	}
+
+	static String hashSymbolicLink(HashAlgorithm hashAlgorithm, Path link) throws IOException {
+		return hashStream(hashAlgorithm, new ByteArrayInputStream(
+				Files.readSymbolicLink(link).toString().getBytes(StandardCharsets.UTF_8)));
+	}
+
+	private static String hashStream(HashAlgorithm hashAlgorithm, InputStream input) throws IOException {
 		Digest digest = createDigest(hashAlgorithm);
-		for (Map.Entry<String, String> entry : hashes.entrySet()) {
-			String line = entry.getKey() + "\t" + entry.getValue() + "\n";
-			byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
-			digest.update(bytes, 0, bytes.length);
+		byte[] buffer = new byte[4 * 1024];
+		int len;
+		while (-1 != (len = input.read(buffer))) {
+			digest.update(buffer, 0, len);
 		}
 		return toHex(digest);
 	}
 
-	private static Digest createDigest(HashAlgorithm hashAlgorithm) {
-		if (hashAlgorithm == HashAlgorithm.BLAKE3) {
-			return new Blake3Digest();
-		}
-		else {
-			return new SHA256Digest();
+	static Digest createDigest(HashAlgorithm hashAlgorithm) {
+		switch (hashAlgorithm) {
+			case BLAKE3:
+			case BLAKE3_VECTOR: return new Blake3Digest();
+			case SHA256: return new JdkDigest("SHA-256");
 		}
+		throw new IllegalArgumentException("Unknown hash algorithm");
 	}
 
-	private static String toHex(Digest digest) {
+	static String toHex(Digest digest) {
 		byte[] out = new byte[digest.getDigestSize()];
 		digest.doFinal(out, 0);
 		return toHex(out);
@@ -103,6 +243,74 @@ public class HashUtils {
 		return hexString.toString();
 	}
 
+	/**
+	 * The index of a directory: one line per file with its relative path and hash, sorted by the path.
+	 */
+	static class Index {
+		private final HashAlgorithm hashAlgorithm;
+		private final Digest digest;
+		// the files added in any order, null if they are added in the order of their paths
+		private final Map<String, String> files;
+		private long size;
+
+		Index(HashAlgorithm hashAlgorithm) {
+			this(hashAlgorithm, false);
+		}
+
+		/**
+		 * @param anyOrder whether the files can be added in any order, which keeps their paths and hashes in memory
+		 */
+		Index(HashAlgorithm hashAlgorithm, boolean anyOrder) {
+			this.hashAlgorithm = hashAlgorithm;
+			digest = createDigest(hashAlgorithm);
+			files = anyOrder ? new TreeMap<>() : null;
+		}
+
+		HashAlgorithm getHashAlgorithm() {
+			return hashAlgorithm;
+		}
+
+		/**
+		 * Add a file, the files must be added in the order of their relative paths unless the index was created
+		 * for any order.
+		 */
+		void add(String name, String hash) {
+			if (files != null) {
+				files.put(name, hash);
+			} else {
+				update(name, hash);
+			}
+		}
+
+		private void update(String name, String hash) {
+			String line = name + "\t" + hash + "\n";
+			byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+			digest.update(bytes, 0, bytes.length);
+		}
+
+		void addSize(long fileSize) {
+			size += fileSize;
+		}
+
+		Info toInfo() {
+			if (files != null) {
+				files.forEach(this::update);
+				files.clear();
+			}
+			return new Info(size, toHex(digest));
+		}
+	}
+
+	private static class Pending {
+		private final String name;
+		private final Future<String> hash;
+
+		private Pending(String name, Future<String> hash) {
+			this.name = name;
+			this.hash = hash;
+		}
+	}
+
 	public static class Info {
 		private final long size;
 		private final String hash;
@@ -0,0 +1,64 @@
+package xyz.wismer.nativestart.packer.util;
+
+import com.github.luben.zstd.Zstd;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Detects files which do not get smaller by compressing them, like images or archives. Files with a known extension
+ * are incompressible, other files if a sample from their start and middle does not get smaller with a fast zstd level.
+ */
+class IncompressibleDetector {
+	// smaller files are not worth switching the compressor
+	static final long MIN_SIZE = 16 * 1024;
+	private static final int SAMPLE_PART = 32 * 1024;
+	private static final double MIN_RATIO = 0.98;
+	// jar and zip files are often stored without compression, so they are sampled
+	private static final Set<String> EXTENSIONS = Set.of("png", "jpg", "jpeg", "gif", "webp", "ico", "mp3", "mp4",
+			"m4a", "ogg", "webm", "woff", "woff2", "gz", "tgz", "xz", "zst", "bz2", "7z");
+
+	static boolean isIncompressible(Path file, long size) throws IOException {
+		if (size < MIN_SIZE) {
+			return false;
+		}
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot > 0 && EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT))) {
+			return true;
+		}
+		byte[] sample = sample(file, size);
+		byte[] compressed = new byte[(int) Zstd.compressBound(sample.length)];
+		long compressedSize = Zstd.compressByteArray(compressed, 0, compressed.length, sample, 0, sample.length, 1);
+		return compressedSize >= MIN_RATIO * sample.length;
+	}
+
+	private static byte[] sample(Path file, long size) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, 2 * SAMPLE_PART));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (size > 2 * SAMPLE_PART) {
+				buffer.limit(SAMPLE_PART);
+				readFully(channel, buffer, 0);
+				buffer.limit(buffer.capacity());
+				readFully(channel, buffer, size / 2);
+			} else {
+				readFully(channel, buffer, 0);
+			}
+		}
+		byte[] sample = buffer.array();
+		return buffer.position() == sample.length ? sample : Arrays.copyOf(sample, buffer.position());
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		int read;
+		while (buffer.hasRemaining() && (read = channel.read(buffer, position)) != -1) {
+			position += read;
+		}
+	}
+}
@@ -0,0 +1,62 @@
+package xyz.wismer.nativestart.packer.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+public class JarUtils {
+	// the earliest time zip entries can store, set as local time so it does not depend on the time zone
+	private static final LocalDateTime ENTRY_TIME = LocalDateTime.of(1980, 1, 1, 0, 0);
+	private static final String MANIFEST_DIRECTORY = "META-INF/";
+	private static final String MANIFEST = "META-INF/MANIFEST.MF";
+
+	/**
+	 * Rewrite a jar with stored (uncompressed) entries, sorted by name and with a fixed modification time, so
+	 * the compression of the download works on the class files themselves and the same content gives the same jar.
+	 * The manifest stays the first entry as {@link java.util.jar.JarInputStream} expects, signatures stay valid as
+	 * they only cover the content of the entries.
+	 * @param jar the jar
+	 * @param target the normalized jar
+	 */
+	public static void normalize(File jar, File target) throws IOException {
+		try (ZipFile zip = new ZipFile(jar);
+			 ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(target.toPath()))) {
+			List<? extends ZipEntry> entries = Collections.list(zip.entries());
+			entries.sort(Comparator.comparingInt((ZipEntry entry) -> rank(entry.getName())).thenComparing(ZipEntry::getName));
+			for (ZipEntry entry : entries) {
+				byte[] data;
+				try (InputStream in = zip.getInputStream(entry)) {
+					data = in.readAllBytes();
+				}
+				ZipEntry stored = new ZipEntry(entry.getName());
+				stored.setMethod(ZipEntry.STORED);
+				stored.setSize(data.length);
+				stored.setCompressedSize(data.length);
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				stored.setCrc(crc.getValue());
+				stored.setTimeLocal(ENTRY_TIME);
+				out.putNextEntry(stored);
+				out.write(data);
+				out.closeEntry();
+			}
+		}
+	}
+
+	private static int rank(String name) {
+		switch (name) {
+			case MANIFEST_DIRECTORY: return 0;
+			case MANIFEST: return 1;
+			default: return 2;
+		}
+	}
+}
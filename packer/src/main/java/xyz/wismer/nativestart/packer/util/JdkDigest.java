@@ -0,0 +1,61 @@
+package xyz.wismer.nativestart.packer.util;
+
+import org.bouncycastle.crypto.Digest;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * A digest backed by {@link MessageDigest}, so HotSpot intrinsics (e.g. SHA extensions) are used.
+ */
+class JdkDigest implements Digest {
+	private final MessageDigest digest;
+
+	JdkDigest(String algorithm) {
+		try {
+			digest = MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(algorithm + " is not supported", e);
+		}
+	}
+
+	@Override
+	public String getAlgorithmName() {
+		return digest.getAlgorithm();
+	}
+
+	@Override
+	public int getDigestSize() {
+		return digest.getDigestLength();
+	}
+
+	@Override
+	public void update(byte in) {
+		digest.update(in);
+	}
+
+	@Override
+	public void update(byte[] in, int inOff, int len) {
+		digest.update(in, inOff, len);
+	}
+
+	/**
+	 * Update with the remaining data of a buffer, e.g. a mapped file, without copying it to an array first.
+	 */
+	void update(ByteBuffer in) {
+		digest.update(in);
+	}
+
+	@Override
+	public int doFinal(byte[] out, int outOff) {
+		byte[] result = digest.digest();
+		System.arraycopy(result, 0, out, outOff, result.length);
+		return result.length;
+	}
+
+	@Override
+	public void reset() {
+		digest.reset();
+	}
+}
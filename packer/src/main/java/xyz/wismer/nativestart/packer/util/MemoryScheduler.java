@@ -0,0 +1,63 @@
+package xyz.wismer.nativestart.packer.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Admits jobs in the order they arrive as long as the sum of their estimated memory stays within a budget.
+ * A job which needs more than the whole budget is admitted once no other job is running.
+ */
+public class MemoryScheduler {
+	private final long budget;
+	private final Deque<Object> queue = new ArrayDeque<>();
+	private long used;
+	private long peak;
+	private long totalWaitNanos;
+
+	/**
+	 * @param budget the memory budget in bytes, {@link Long#MAX_VALUE} to admit every job immediately
+	 */
+	public MemoryScheduler(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Wait until the job fits into the budget.
+	 * @param memory the estimated memory of the job in bytes
+	 * @return the time waited in nanoseconds
+	 */
+	public synchronized long acquire(long memory) throws InterruptedException {
+		long start = System.nanoTime();
+		Object ticket = new Object();
+		queue.addLast(ticket);
+		try {
+			while (queue.peekFirst() != ticket || (used > 0 && used + memory > budget)) {
+				wait();
+			}
+		} finally {
+			queue.remove(ticket);
+			notifyAll();
+		}
+		used += memory;
+		peak = Math.max(peak, used);
+		long waited = System.nanoTime() - start;
+		totalWaitNanos += waited;
+		return waited;
+	}
+
+	public synchronized void release(long memory) {
+		used -= memory;
+		notifyAll();
+	}
+
+	/**
+	 * @return the highest sum of the estimated memory of the jobs running at the same time
+	 */
+	public synchronized long getPeakMemory() {
+		return peak;
+	}
+
+	public synchronized long getTotalWaitNanos() {
+		return totalWaitNanos;
+	}
+}
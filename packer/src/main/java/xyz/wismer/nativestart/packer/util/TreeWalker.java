@@ -0,0 +1,77 @@
+package xyz.wismer.nativestart.packer.util;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Walks a directory tree depth first in the order of the relative paths (separated by "/") as sorted by
+ * {@link String#compareTo(String)}. Only the listings of the directories on the current path are kept in memory,
+ * so the memory used does not depend on the number of files in the tree.
+ */
+class TreeWalker {
+
+	interface Visitor {
+		/**
+		 * Called for every entry which is not a directory.
+		 * @param path the entry
+		 * @param name the path relative to the root, separated by "/"
+		 * @param linked whether the entry is below a symbolic link to a directory
+		 */
+		void visit(Path path, String name, boolean linked) throws IOException;
+	}
+
+	/**
+	 * Walk the tree below root.
+	 * @param root the root directory
+	 * @param followLinks whether to descend into symbolic links to directories
+	 * @param visitor receives the entries
+	 */
+	static void walk(Path root, boolean followLinks, Visitor visitor) throws IOException {
+		walk(root, "", followLinks, false, visitor);
+	}
+
+	private static void walk(Path dir, String prefix, boolean followLinks, boolean linked, Visitor visitor)
+			throws IOException {
+		List<Entry> children = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path child : stream) {
+				children.add(new Entry(child));
+			}
+		}
+		Collections.sort(children);
+		for (Entry child : children) {
+			String name = prefix + child.path.getFileName().toString();
+			if (child.directory) {
+				boolean link = Files.isSymbolicLink(child.path);
+				if (!link || followLinks) {
+					walk(child.path, name + "/", followLinks, linked || link, visitor);
+				}
+			} else {
+				visitor.visit(child.path, name, linked);
+			}
+		}
+	}
+
+	private static class Entry implements Comparable<Entry> {
+		private final Path path;
+		private final boolean directory;
+		// directories sort as if followed by their children
+		private final String key;
+
+		private Entry(Path path) {
+			this.path = path;
+			this.directory = Files.isDirectory(path);
+			this.key = path.getFileName().toString() + (directory ? "/" : "");
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			return key.compareTo(other.key);
+		}
+	}
+}
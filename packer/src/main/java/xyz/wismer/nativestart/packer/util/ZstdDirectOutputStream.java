@@ -0,0 +1,195 @@
+package xyz.wismer.nativestart.packer.util;
+
+import com.github.luben.zstd.EndDirective;
+import com.github.luben.zstd.ZstdCompressCtx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compresses with zstd from and to direct buffers, so data read with a {@link java.nio.channels.FileChannel} and
+ * written to one is never copied on the heap. The output is the same as the one of
+ * {@link com.github.luben.zstd.ZstdOutputStream} with the same settings.
+ */
+class ZstdDirectOutputStream extends OutputStream {
+	// the input and output block sizes zstd recommends for streaming
+	private static final int BUFFER_SIZE = 128 * 1024;
+	private static final ByteBuffer EMPTY = ByteBuffer.allocateDirect(0);
+	// the seek table of the zstd seekable format, a skippable frame at the end of the stream
+	static final int SKIPPABLE_MAGIC = 0x184D2A5E;
+	static final int SEEKABLE_MAGIC = 0x8F92EAB1;
+	static final int SEEK_TABLE_FOOTER_SIZE = 9;
+
+	private final ZstdCompressCtx ctx = new ZstdCompressCtx();
+	private final WritableByteChannel channel;
+	// collects the data written from arrays
+	private final ByteBuffer input = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final ByteBuffer output = ByteBuffer.allocateDirect(BUFFER_SIZE + BUFFER_SIZE / 128 + 512);
+	// the compressed and decompressed sizes of the finished frames
+	private final List<long[]> frames = new ArrayList<>();
+	private int frameSize;
+	private long frameInput;
+	private long frameOutput;
+	private boolean closed;
+
+	/**
+	 * @param channel receives the compressed data, closed with this stream
+	 * @param level the compression level
+	 */
+	ZstdDirectOutputStream(WritableByteChannel channel, int level) {
+		this.channel = channel;
+		ctx.setLevel(level);
+	}
+
+	/**
+	 * @param workers the number of threads compressing in the background, 0 to compress in the calling thread
+	 */
+	void setWorkers(int workers) {
+		ctx.setWorkers(workers);
+	}
+
+	void setDict(byte[] dictionary) {
+		ctx.loadDict(dictionary);
+	}
+
+	/**
+	 * Write frames of at most the given decompressed size and a seek table after them, in the zstd seekable format.
+	 * Decompressors which do not know the format skip the seek table.
+	 * @param frameSize the maximum decompressed size of a frame
+	 */
+	void setFrameSize(int frameSize) {
+		this.frameSize = frameSize;
+	}
+
+	/**
+	 * Set the level, ending the current frame if data was written to it since the level can only change between
+	 * frames.
+	 */
+	void setLevel(int level) throws IOException {
+		compressInput();
+		if (frameInput > 0) {
+			endFrame();
+		}
+		ctx.setLevel(level);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] {(byte) b}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (!input.hasRemaining()) {
+				compressInput();
+			}
+			int length = Math.min(len, input.remaining());
+			input.put(b, off, length);
+			off += length;
+			len -= length;
+		}
+	}
+
+	/**
+	 * Compress the remaining data of a buffer, after the data written before.
+	 * @param buffer a direct buffer, its position is moved to its limit
+	 */
+	void write(ByteBuffer buffer) throws IOException {
+		if (buffer.hasRemaining()) {
+			compressInput();
+			compress(buffer);
+		}
+	}
+
+	private void compressInput() throws IOException {
+		input.flip();
+		compress(input);
+		input.clear();
+	}
+
+	/**
+	 * Compress the remaining data of the source, ending the frames which reach the frame size.
+	 */
+	private void compress(ByteBuffer source) throws IOException {
+		while (frameSize > 0 && source.remaining() >= frameSize - frameInput) {
+			int limit = source.limit();
+			source.limit(source.position() + (int) (frameSize - frameInput));
+			stream(source, EndDirective.CONTINUE);
+			source.limit(limit);
+			endFrame();
+		}
+		stream(source, EndDirective.CONTINUE);
+	}
+
+	private void endFrame() throws IOException {
+		stream(EMPTY, EndDirective.END);
+		frames.add(new long[] {frameOutput, frameInput});
+		frameInput = 0;
+		frameOutput = 0;
+	}
+
+	/**
+	 * Compress until the source is consumed or, to end the frame, until zstd has written everything.
+	 */
+	private void stream(ByteBuffer source, EndDirective directive) throws IOException {
+		frameInput += source.remaining();
+		boolean done;
+		do {
+			done = ctx.compressDirectByteBufferStream(output, source, directive);
+			output.flip();
+			frameOutput += output.remaining();
+			while (output.hasRemaining()) {
+				channel.write(output);
+			}
+			output.clear();
+		} while (source.hasRemaining() || directive != EndDirective.CONTINUE && !done);
+	}
+
+	private void writeSeekTable() throws IOException {
+		int size = frames.size() * 8 + SEEK_TABLE_FOOTER_SIZE;
+		ByteBuffer table = ByteBuffer.allocate(8 + size).order(ByteOrder.LITTLE_ENDIAN);
+		table.putInt(SKIPPABLE_MAGIC);
+		table.putInt(size);
+		for (long[] frame : frames) {
+			table.putInt((int) frame[0]);
+			table.putInt((int) frame[1]);
+		}
+		table.putInt(frames.size());
+		// no checksums
+		table.put((byte) 0);
+		table.putInt(SEEKABLE_MAGIC);
+		table.flip();
+		while (table.hasRemaining()) {
+			channel.write(table);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			compressInput();
+			if (frameInput > 0 || frames.isEmpty()) {
+				endFrame();
+			}
+			if (frameSize > 0) {
+				writeSeekTable();
+			}
+		} finally {
+			try {
+				ctx.close();
+			} finally {
+				channel.close();
+			}
+		}
+	}
+}
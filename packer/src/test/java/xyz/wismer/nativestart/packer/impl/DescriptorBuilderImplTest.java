@@ -0,0 +1,335 @@
+package xyz.wismer.nativestart.packer.impl;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import xyz.wismer.nativestart.packer.Component;
+import xyz.wismer.nativestart.packer.CompressionAlgorithm;
+import xyz.wismer.nativestart.packer.DescriptorBuilder;
+import xyz.wismer.nativestart.packer.EntryOrder;
+import xyz.wismer.nativestart.packer.HashAlgorithm;
+import xyz.wismer.nativestart.packer.OperatingSystem;
+import xyz.wismer.nativestart.packer.Packer;
+import xyz.wismer.nativestart.packer.util.CompressUtils;
+import xyz.wismer.nativestart.packer.util.CompressionSettings;
+import xyz.wismer.nativestart.packer.util.HashUtils;
+import xyz.wismer.nativestart.packer.util.JarUtils;
+import xyz.wismer.nativestart.packer.util.TestFiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class DescriptorBuilderImplTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void concurrentGenerateMatchesSequential() throws Exception {
+		Path sources = createSources();
+		Path sequential = tempDir.resolve("sequential");
+		Path concurrent = tempDir.resolve("concurrent");
+
+		builder(sources).generate(sequential.toFile(), new URL("http://localhost/"), null);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			builder(sources).executor(executor).generate(concurrent.toFile(), new URL("http://localhost/"), null);
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(list(sequential), list(concurrent));
+		assertEquals(Files.readString(sequential.resolve("Test-1.0-linux.toml")),
+				Files.readString(concurrent.resolve("Test-1.0-linux.toml")));
+	}
+
+	@Test
+	void reportsCompressionsWithinBudget() throws Exception {
+		Path sources = createSources();
+		Path target = tempDir.resolve("target");
+		File report = tempDir.resolve("report.toml").toFile();
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			builder(sources).executor(executor).memoryBudget(1).report(report)
+					.generate(target.toFile(), new URL("http://localhost/"), null);
+		} finally {
+			executor.shutdown();
+		}
+
+		String toml = Files.readString(report.toPath());
+		long estimate = new CompressionSettings(CompressionAlgorithm.ZSTD, 12).estimateMemory();
+		// with a tiny budget, the compressions run one at a time
+		assertTrue(toml.contains("peak_memory = " + estimate + "\n"), toml);
+		assertTrue(toml.contains("path = \"runtime/\"\nestimated_memory = " + estimate + "\nqueue_wait_ms = "), toml);
+	}
+
+	@Test
+	void reportsOrderGain() throws Exception {
+		Path sources = createSources();
+		Path target = tempDir.resolve("target");
+		File report = tempDir.resolve("report.toml").toFile();
+		builder(sources).entryOrder(EntryOrder.TYPE).report(report).reportOrderGain(true)
+				.generate(target.toFile(), new URL("http://localhost/"), null);
+
+		String toml = Files.readString(report.toPath());
+		assertTrue(toml.matches("(?s).*path = \"runtime/\"\n.*path_order_size = \\d+\norder_gain = -?[0-9.E-]+\n.*"),
+				toml);
+	}
+
+	@Test
+	void publishesDictionary() throws Exception {
+		Path sources = createSources();
+		TestFiles.createSmallFiles(sources.resolve("resources"));
+		Path target = tempDir.resolve("target");
+		builder(sources).dictionary(16 * 1024).generate(target.toFile(), new URL("http://localhost/"), null);
+
+		List<String> files = list(target);
+		String dictionary = files.stream().filter(name -> name.startsWith("dictionaries/")).findFirst().orElseThrow();
+		String checksum = dictionary.substring("dictionaries/".length(), dictionary.length() - ".dict".length());
+		String toml = Files.readString(target.resolve("Test-1.0-linux.toml"));
+		assertTrue(toml.contains("[dictionary]\nurl = \"http://localhost/" + dictionary + "\""), toml);
+		assertTrue(toml.contains("path = \"resources/\"\ndictionary = \"" + checksum + "\""), toml);
+		assertFalse(toml.contains("path = \"lib/app.jar\"\ndictionary"), toml);
+	}
+
+	@Test
+	void reportsAdaptiveChoice() throws Exception {
+		Path sources = createSources();
+		Path target = tempDir.resolve("target");
+		File report = tempDir.resolve("report.toml").toFile();
+		builder(sources).compressionTimeBudget(Duration.ofMinutes(1)).report(report)
+				.generate(target.toFile(), new URL("http://localhost/"), null);
+
+		String toml = Files.readString(report.toPath());
+		assertTrue(toml.matches("(?s).*path = \"runtime/\"\n.*trial_estimated_memory = \\d+\n"
+				+ ".*algorithm = \"ZSTD\"\nlevel = \\d+\n"
+				+ "sample_ratio = [0-9.E-]+\n.*ratio = [0-9.E-]+\n.*"), toml);
+		String descriptor = Files.readString(target.resolve("Test-1.0-linux.toml"));
+		assertTrue(descriptor.matches("(?s).*url = \"http://localhost/runtime/jdk\\.tar\\.zstd\".*"), descriptor);
+	}
+
+	@Test
+	void publishesDeltas() throws Exception {
+		Path previous = createSources();
+		Path sources = tempDir.resolve("next");
+		FileUtils.copyDirectory(previous.toFile(), sources.toFile());
+		Files.writeString(sources.resolve("runtime/a.txt"), "changed");
+		Path target = tempDir.resolve("target");
+		builder(sources).previousRelease("runtime/", previous.resolve("runtime").toFile())
+				.previousRelease("resources/", previous.resolve("resources").toFile())
+				.generate(target.toFile(), new URL("http://localhost/"), null);
+
+		String baseChecksum = HashUtils.hash(HashAlgorithm.BLAKE3, previous.resolve("runtime").toFile()).getHash();
+		String toml = Files.readString(target.resolve("Test-1.0-linux.toml"));
+		assertTrue(toml.matches("(?s).*path = \"runtime/\"\n\n\\[\\[component\\.delta]]\n"
+				+ "url = \"http://localhost/deltas/" + baseChecksum + "-[0-9a-f]+\\.tar\\.zstd\"\nsize = \\d+\n"
+				+ "base_checksum = \"" + baseChecksum + "\"\nformat = \"changes\"\n.*"), toml);
+		// unchanged components get no delta
+		assertEquals(1, toml.split("component\\.delta").length - 1, toml);
+	}
+
+	@Test
+	void publishesChunkIndex() throws Exception {
+		Path sources = createSources();
+		Path target = tempDir.resolve("target");
+		builder(sources).chunkStore(1024).generate(target.toFile(), new URL("http://localhost/"), null);
+
+		String toml = Files.readString(target.resolve("Test-1.0-linux.toml"));
+		assertTrue(toml.matches("(?s).*path = \"runtime/\"\nchunk_index = \"http://localhost/chunks/[0-9a-f]+\\.index\"\n.*"),
+				toml);
+		assertTrue(list(target).stream().anyMatch(name -> name.matches("chunks/[0-9a-f]+\\.zstd")));
+	}
+
+	@Test
+	void publishesFrameIndex() throws Exception {
+		Path sources = createSources();
+		Path target = tempDir.resolve("target");
+		builder(sources).seekableFrames(1024).generate(target.toFile(), new URL("http://localhost/"), null);
+
+		String toml = Files.readString(target.resolve("Test-1.0-linux.toml"));
+		assertTrue(toml.contains("\nframe_index = \"http://localhost/runtime/jdk.tar.zstd.index\"\n"), toml);
+		assertTrue(CompressUtils.isSeekable(target.resolve("runtime/jdk.tar.zstd").toFile()));
+		List<String> index = Files.readAllLines(target.resolve("runtime/jdk.tar.zstd.index"));
+		assertTrue(index.contains("a-b.txt\t0\t512\t3"), index.toString());
+	}
+
+	@Test
+	void publishesShards() throws Exception {
+		Path sources = createSources();
+		Path target = tempDir.resolve("target");
+		builder(sources).shards(64 * 1024).generate(target.toFile(), new URL("http://localhost/"), null);
+
+		String toml = Files.readString(target.resolve("Test-1.0-linux.toml"));
+		assertTrue(toml.matches("(?s).*path = \"runtime/\"\n.*\n\\[\\[component\\.shard]]\n"
+				+ "url = \"http://localhost/runtime/jdk\\.shard1\\.tar\\.zstd\"\nsize = \\d+\ndownload_size = \\d+\n"
+				+ "checksum = \"[0-9a-f]+\"\n.*"), toml);
+		assertTrue(Files.exists(target.resolve("runtime/jdk.shard2.tar.zstd")));
+		assertTrue(Files.exists(target.resolve("runtime/jdk.tar.zstd")));
+
+		// the existing shards are only hashed again
+		File shard = target.resolve("runtime/jdk.shard1.tar.zstd").toFile();
+		assertTrue(shard.setLastModified(0));
+		builder(sources).shards(64 * 1024).generate(target.toFile(), new URL("http://localhost/"), null);
+		assertEquals(0, shard.lastModified());
+		assertEquals(toml, Files.readString(target.resolve("Test-1.0-linux.toml")));
+	}
+
+	@Test
+	void compressesFilesWhichShrinkEnough() throws Exception {
+		Path sources = createSources();
+		Files.writeString(sources.resolve("data.txt"), "compressible ".repeat(10000));
+		byte[] random = new byte[100000];
+		new Random(1).nextBytes(random);
+		Files.write(sources.resolve("data.bin"), random);
+		Path target = tempDir.resolve("target");
+		Path work = tempDir.resolve("work");
+		fileBuilder(sources).workDirectory(work.toFile())
+				.generate(target.toFile(), new URL("http://localhost/"), null);
+
+		String toml = Files.readString(target.resolve("Test-1.0-linux.toml"));
+		long compressedSize = Files.size(target.resolve("data/data.txt.zstd"));
+		assertTrue(toml.contains("url = \"http://localhost/data/data.txt.zstd\"\nsize = 130000\ndownload_size = "
+				+ compressedSize + "\n"), toml);
+		assertTrue(toml.contains("url = \"http://localhost/data/data.bin\"\nsize = 100000\nchecksum"), toml);
+		assertEquals(List.of("Test-1.0-linux.toml", "data/data.bin", "data/data.txt.zstd", "runtime/jdk.tar.zstd",
+				"splash/splash.tar.zstd"),
+				list(target));
+
+		// the stored file is not compressed again
+		File kept = work.resolve("data/data.bin.zstd").toFile();
+		assertTrue(kept.setLastModified(0));
+		fileBuilder(sources).workDirectory(work.toFile())
+				.generate(target.toFile(), new URL("http://localhost/"), null);
+		assertEquals(0, kept.lastModified());
+		assertEquals(toml, Files.readString(target.resolve("Test-1.0-linux.toml")));
+	}
+
+	@Test
+	void generatesWithShortName() throws Exception {
+		Path sources = createSources();
+		TestFiles.createSmallFiles(sources.resolve("resources"));
+		Path target = tempDir.resolve("target");
+		Packer.descriptorBuilder("Ab", "1.0", OperatingSystem.LINUX)
+				.dictionary(16 * 1024)
+				.splash(new Component(sources.resolve("splash").toFile(), "splash/splash", "splash/"))
+				.jvm(new Component(sources.resolve("runtime").toFile(), "runtime/jdk", "runtime/"))
+				.resource(new Component(sources.resolve("resources").toFile(), "resources/res", "resources/"))
+				.main("test.Main")
+				.generate(target.toFile(), new URL("http://localhost/"), null);
+
+		assertTrue(Files.exists(target.resolve("Ab-1.0-linux.toml")));
+		assertTrue(list(target).stream().anyMatch(name -> name.startsWith("dictionaries/")));
+	}
+
+	@Test
+	void failedComponentLeavesNoPartialFiles() throws Exception {
+		Path sources = createSources();
+		Path target = tempDir.resolve("target");
+		DescriptorBuilder builder = builder(sources);
+		Files.delete(sources.resolve("lib/app.jar"));
+
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			builder.executor(executor);
+			assertThrows(IOException.class, () -> builder.generate(target.toFile(), new URL("http://localhost/"), null));
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(list(target).stream().noneMatch(name -> name.endsWith(".tmp")));
+	}
+
+	@Test
+	void normalizesEveryJar() throws Exception {
+		Path sources = createSources();
+		File one = jar(sources.resolve("lib/one.jar"), "class one");
+		File two = jar(sources.resolve("lib/two.jar"), "class two");
+		Component library = new Component(one, "lib/{hash}.jar", "lib/one.jar");
+		Path target = tempDir.resolve("target");
+		builder(sources).normalizeJars(true).library(library)
+				.library(new Component(two, "lib/{hash}.jar", "lib/two.jar"))
+				.generate(target.toFile(), new URL("http://localhost/"), null);
+
+		assertEquals(one, library.getLocalSource());
+		String descriptor = Files.readString(target.resolve("Test-1.0-linux.toml"));
+		assertTrue(descriptor.contains("checksum = \"" + normalizedHash(one) + "\""), descriptor);
+		assertTrue(descriptor.contains("checksum = \"" + normalizedHash(two) + "\""), descriptor);
+
+		// a jar replaced by an older one is normalized again
+		jar(one.toPath(), "class three");
+		assertTrue(one.setLastModified(0));
+		builder(sources).normalizeJars(true).library(new Component(one, "lib/{hash}.jar", "lib/one.jar"))
+				.generate(target.toFile(), new URL("http://localhost/"), null);
+		descriptor = Files.readString(target.resolve("Test-1.0-linux.toml"));
+		assertTrue(descriptor.contains("checksum = \"" + normalizedHash(one) + "\""), descriptor);
+	}
+
+	private static File jar(Path file, String content) throws IOException {
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(file))) {
+			out.putNextEntry(new ZipEntry("a/A.class"));
+			out.write(content.getBytes(StandardCharsets.UTF_8));
+		}
+		return file.toFile();
+	}
+
+	private String normalizedHash(File jar) throws IOException {
+		File normalized = tempDir.resolve("normalized.jar").toFile();
+		JarUtils.normalize(jar, normalized);
+		return HashUtils.hash(HashAlgorithm.BLAKE3, normalized).getHash();
+	}
+
+	private Path createSources() throws IOException {
+		Path sources = tempDir.resolve("sources");
+		TestFiles.createTree(sources.resolve("runtime"));
+		TestFiles.createTree(sources.resolve("resources"));
+		Files.createDirectories(sources.resolve("splash"));
+		Files.writeString(sources.resolve("splash/splash.txt"), "splash");
+		Files.createDirectories(sources.resolve("lib"));
+		Files.writeString(sources.resolve("lib/app.jar"), "not really a jar");
+		return sources;
+	}
+
+	private DescriptorBuilder builder(Path sources) throws IOException {
+		return Packer.descriptorBuilder("Test", "1.0", OperatingSystem.LINUX)
+				.splash(new Component(sources.resolve("splash").toFile(), "splash/splash", "splash/"))
+				.jvm(new Component(sources.resolve("runtime").toFile(), "runtime/jdk", "runtime/"))
+				.resource(new Component(sources.resolve("resources").toFile(), "resources/res", "resources/"))
+				.library(new Component(sources.resolve("lib/app.jar").toFile(), "lib/app.jar", "lib/app.jar"))
+				.main("test.Main");
+	}
+
+	private DescriptorBuilder fileBuilder(Path sources) throws IOException {
+		return Packer.descriptorBuilder("Test", "1.0", OperatingSystem.LINUX)
+				.compressFiles(0.1)
+				.splash(new Component(sources.resolve("splash").toFile(), "splash/splash", "splash/"))
+				.jvm(new Component(sources.resolve("runtime").toFile(), "runtime/jdk", "runtime/"))
+				.resource(new Component(sources.resolve("data.txt").toFile(), "data/data.txt", "data.txt"))
+				.resource(new Component(sources.resolve("data.bin").toFile(), "data/data.bin", "data.bin"))
+				.main("test.Main");
+	}
+
+	private static List<String> list(Path directory) throws IOException {
+		if (!Files.exists(directory)) {
+			return List.of();
+		}
+		try (Stream<Path> files = Files.walk(directory)) {
+			return files.filter(Files::isRegularFile).map(p -> directory.relativize(p).toString()).sorted().toList();
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package xyz.wismer.nativestart.packer.manifest;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class TomlTest {
+
+	@Test
+	void stringsAreEscaped() {
+		Toml toml = new Toml();
+		toml.append("path", "a\\b");
+		toml.append("removed", List.of("say \"hi\".txt", "tab\there"));
+		assertEquals("path = \"a\\\\b\"\nremoved = [\n  \"say \\\"hi\\\".txt\",\n  \"tab\\there\",\n]\n",
+				toml.toString());
+	}
+}
@@ -0,0 +1,81 @@
+package xyz.wismer.nativestart.packer.util;
+
+import com.github.luben.zstd.Zstd;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import xyz.wismer.nativestart.packer.HashAlgorithm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ChunkStoreTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void chunksConcatenateToArchive() throws Exception {
+		Path source = createFiles(tempDir.resolve("source"));
+		ChunkStore store = new ChunkStore(tempDir.resolve("chunks").toFile(), HashAlgorithm.BLAKE3, 3, 16 * 1024);
+		ChunkStore.Result result = store.add(source.toFile());
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		CompressUtils.archive(source.toFile(), expected, true);
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		List<String> lines = Files.readAllLines(tempDir.resolve("chunks").resolve(result.getIndex()));
+		for (String line : lines) {
+			String[] fields = line.split("\t");
+			byte[] compressed = Files.readAllBytes(tempDir.resolve("chunks").resolve(fields[0] + ".zstd"));
+			assertEquals(Long.parseLong(fields[2]), compressed.length);
+			actual.write(Zstd.decompress(compressed, Integer.parseInt(fields[1])));
+		}
+		assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+		assertEquals(lines.size(), result.getChunks());
+		assertTrue(result.getChunks() > 10, "chunks: " + result.getChunks());
+	}
+
+	@Test
+	void unchangedChunksAreReused() throws Exception {
+		Path source = createFiles(tempDir.resolve("source"));
+		ChunkStore store = new ChunkStore(tempDir.resolve("chunks").toFile(), HashAlgorithm.BLAKE3, 3, 16 * 1024);
+		ChunkStore.Result first = store.add(source.toFile());
+		assertEquals(first.getChunks(), first.getNewChunks());
+
+		// inserting data shifts everything after it, but only the chunks around the change are new
+		byte[] data = Files.readAllBytes(source.resolve("file3.bin"));
+		byte[] changed = new byte[data.length + 100];
+		System.arraycopy(data, 0, changed, 0, 1000);
+		System.arraycopy(data, 1000, changed, 1100, data.length - 1000);
+		Files.write(source.resolve("file3.bin"), changed);
+		ChunkStore.Result second = store.add(source.toFile());
+
+		assertTrue(second.getNewChunks() <= 3, "new chunks: " + second.getNewChunks());
+		assertTrue(second.getNewSize() < first.getNewSize() / 4);
+
+		ChunkStore.Result third = store.add(source.toFile());
+		assertEquals(0, third.getNewChunks());
+		assertEquals(second.getIndex(), third.getIndex());
+	}
+
+	private static Path createFiles(Path root) throws Exception {
+		Files.createDirectories(root);
+		Random random = new Random(42);
+		for (int i = 0; i < 8; i++) {
+			// random text compresses, but does not repeat
+			byte[] data = new byte[64 * 1024];
+			for (int j = 0; j < data.length; j++) {
+				data[j] = (byte) ('a' + random.nextInt(16));
+			}
+			Files.write(root.resolve("file" + i + ".bin"), data);
+		}
+		return root;
+	}
+}
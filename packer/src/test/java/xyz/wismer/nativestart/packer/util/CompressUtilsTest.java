@@ -0,0 +1,411 @@
+package xyz.wismer.nativestart.packer.util;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.tukaani.xz.XZInputStream;
+import xyz.wismer.nativestart.packer.CompressionAlgorithm;
+import xyz.wismer.nativestart.packer.EntryOrder;
+import xyz.wismer.nativestart.packer.HashAlgorithm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CompressUtilsTest {
+
+	@TempDir
+	File tempDir;
+
+	@Test
+	void compressAndHashMatchesSeparateSteps() throws Exception {
+		Path source = tempDir.toPath().resolve("source");
+		TestFiles.createTree(source);
+		Files.createSymbolicLink(source.resolve("link.txt"), source.resolve("a.txt").getFileName());
+
+		File compressed = new File(tempDir, "compressed.tar.zst");
+		File fused = new File(tempDir, "fused.tar.zst");
+		// the entry of the symbolic link would otherwise get the current time
+		CompressionSettings settings = new CompressionSettings(CompressionAlgorithm.ZSTD, 3);
+		settings.setReproducible(true);
+		CompressUtils.compress(source.toFile(), compressed, settings);
+		HashUtils.Info info = CompressUtils.compressAndHash(source.toFile(), fused, settings, HashAlgorithm.BLAKE3);
+
+		HashUtils.Info expected = HashUtils.hash(HashAlgorithm.BLAKE3, source.toFile());
+		assertEquals(expected.getSize(), info.getSize());
+		assertEquals(expected.getHash(), info.getHash());
+		assertArrayEquals(Files.readAllBytes(compressed.toPath()), Files.readAllBytes(fused.toPath()));
+	}
+
+	@Test
+	void multiThreadedZstdDecompressesToSameArchive() throws Exception {
+		Path source = tempDir.toPath().resolve("source");
+		TestFiles.createTree(source);
+
+		File single = new File(tempDir, "single.tar.zst");
+		File multi = new File(tempDir, "multi.tar.zst");
+		CompressionSettings settings = new CompressionSettings(CompressionAlgorithm.ZSTD, 3);
+		CompressUtils.compress(source.toFile(), single, settings);
+		settings.setWorkers(2);
+		CompressUtils.compress(source.toFile(), multi, settings);
+
+		assertArrayEquals(decompress(single), decompress(multi));
+	}
+
+	@Test
+	void compressedArchiveDecompressesToTar() throws Exception {
+		Path source = tempDir.toPath().resolve("source");
+		TestFiles.createTree(source);
+		// a name which needs a PAX header, an empty file and a file larger than the buffers
+		Path longName = source.resolve("dir1/" + "long".repeat(40) + ".txt");
+		Files.writeString(longName, "long name");
+		Files.createFile(source.resolve("empty.txt"));
+		byte[] large = new byte[300 * 1024 + 17];
+		new Random(5).nextBytes(large);
+		Files.write(source.resolve("large.bin"), large);
+
+		ByteArrayOutputStream tar = new ByteArrayOutputStream();
+		CompressUtils.archive(source.toFile(), tar, true);
+		File compressed = new File(tempDir, "compressed.tar.zst");
+		CompressionSettings settings = new CompressionSettings(CompressionAlgorithm.ZSTD, 3);
+		settings.setReproducible(true);
+		CompressUtils.compress(source.toFile(), compressed, settings);
+
+		assertArrayEquals(tar.toByteArray(), decompress(compressed));
+		Map<String, String> entries = entries(compressed, CompressionAlgorithm.ZSTD);
+		assertEquals(HexFormat.of().formatHex("long name".getBytes(StandardCharsets.UTF_8)),
+				entries.get(source.relativize(longName).toString()));
+		assertEquals("", entries.get("empty.txt"));
+		assertEquals(HexFormat.of().formatHex(large), entries.get("large.bin"));
+	}
+
+	@Test
+	void seekableFramesDecompressAlone() throws Exception {
+		Path source = tempDir.toPath().resolve("source");
+		TestFiles.createTree(source);
+		byte[] large = new byte[200 * 1024];
+		new Random(6).nextBytes(large);
+		Files.write(source.resolve("large.bin"), large);
+		Files.write(source.resolve("dir1/copy.bin"), large);
+
+		File archive = new File(tempDir, "seekable.tar.zst");
+		CompressionSettings settings = new CompressionSettings(CompressionAlgorithm.ZSTD, 3);
+		settings.setHardLinks(HashAlgorithm.BLAKE3);
+		settings.setFrameSize(16 * 1024);
+		CompressUtils.compress(source.toFile(), archive, settings);
+		File index = new File(tempDir, "seekable.index");
+		CompressUtils.writeFrameIndex(archive, index);
+
+		assertTrue(CompressUtils.isSeekable(archive));
+		List<String> lines = Files.readAllLines(index.toPath());
+		assertEquals(entries(archive, CompressionAlgorithm.ZSTD).size(), lines.size());
+		// decompress each frame alone, as listed in the seek table
+		byte[] data = Files.readAllBytes(archive.toPath());
+		ByteBuffer footer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+		int frameCount = footer.getInt(data.length - 9);
+		assertEquals(CompressUtils.frameCount(archive), frameCount);
+		List<byte[]> frames = new ArrayList<>();
+		int position = 0;
+		for (int i = 0; i < frameCount; i++) {
+			int entry = data.length - 9 - (frameCount - i) * 8;
+			int compressedSize = footer.getInt(entry);
+			byte[] frame = Arrays.copyOfRange(data, position, position + compressedSize);
+			frames.add(Zstd.decompress(frame, footer.getInt(entry + 4)));
+			position += compressedSize;
+		}
+		for (String line : lines) {
+			String[] fields = line.split("\t");
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			for (int frame = Integer.parseInt(fields[1]); frame < frameCount; frame++) {
+				content.write(frames.get(frame));
+			}
+			int offset = Integer.parseInt(fields[2]);
+			byte[] file = Arrays.copyOfRange(content.toByteArray(), offset, offset + Integer.parseInt(fields[3]));
+			assertArrayEquals(Files.readAllBytes(source.resolve(fields[0])), file, fields[0]);
+		}
+		// the hard link points to the content of the first copy
+		String location = lines.stream().filter(line -> line.startsWith("large.bin\t")).findFirst().orElseThrow()
+				.substring("large.bin".length());
+		assertTrue(lines.contains("dir1/copy.bin" + location), location);
+	}
+
+	@Test
+	void shardsAreBalancedRanges() throws Exception {
+		Path source = tempDir.toPath().resolve("source");
+		TestFiles.createTree(source);
+		List<String> names = new ArrayList<>();
+		long total;
+		try (Stream<Path> files = Files.walk(source)) {
+			total = files.filter(Files::isRegularFile).mapToLong(path -> path.toFile().length()).sum();
+		}
+		List<List<String>> shards = CompressUtils.shards(source.toFile(), total / 3 + 1);
+
+		assertEquals(3, shards.size());
+		for (List<String> shard : shards) {
+			names.addAll(shard);
+			long size = shard.stream().mapToLong(name -> source.resolve(name).toFile().length()).sum();
+			// the files are at most 20000 bytes
+			assertTrue(Math.abs(size - total / 3) <= 20000, size + " " + total);
+		}
+		assertEquals(names.stream().sorted().toList(), names);
+
+		// a shard hashes like a directory with only its files
+		Path copy = tempDir.toPath().resolve("copy");
+		for (String name : shards.get(1)) {
+			Files.createDirectories(copy.resolve(name).getParent());
+			Files.copy(source.resolve(name), copy.resolve(name));
+		}
+		HashUtils.Info info = CompressUtils.compressAndHash(source.toFile(), new HashSet<>(shards.get(1)),
+				new File(tempDir, "shard.tar.zst"), new CompressionSettings(CompressionAlgorithm.ZSTD, 3),
+				HashAlgorithm.BLAKE3);
+		assertEquals(HashUtils.hash(HashAlgorithm.BLAKE3, copy.toFile()).getHash(), info.getHash());
+		assertEquals(shards.get(1).size(), entries(new File(tempDir, "shard.tar.zst"), CompressionAlgorithm.ZSTD).size());
+	}
+
+	@Test
+	void reproducibleArchivesAreIdentical() throws Exception {
+		Path source = tempDir.toPath().resolve("source");
+		TestFiles.createTree(source);
+		Files.createSymbolicLink(source.resolve("link.txt"), source.resolve("a.txt").getFileName());
+		File first = new File(tempDir, "first.tar.zst");
+		CompressionSettings settings = new CompressionSettings(CompressionAlgorithm.ZSTD, 3);
+		settings.setReproducible(true);
+		CompressUtils.compress(source.toFile(), first, settings);
+
+		// touch every file and compress with a different number of workers
+		try (Stream<Path> files = Files.walk(source)) {
+			for (Path file : files.toList()) {
+				Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - 86400000L));
+			}
+		}
+		File second = new File(tempDir, "second.tar.zst");
+		settings.setWorkers(2);
+		CompressUtils.compress(source.toFile(), second, settings);
+
+		assertArrayEquals(Files.readAllBytes(first.toPath()), Files.readAllBytes(second.toPath()));
+		try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(decompress(first)))) {
+			for (TarArchiveEntry entry = tar.getNextEntry(); entry != null; entry = tar.getNextEntry()) {
+				assertEquals(315532800000L, entry.getModTime().getTime(), entry.getName());
+				assertEquals("", entry.getUserName());
+			}
+		}
+	}
+
+	@Test
+	void duplicateFilesAreHardLinks() throws Exception {
+		Path source = tempDir.toPath().resolve("source");
+		TestFiles.createTree(source);
+		byte[] library = new byte[256 * 1024];
+		new Random(1).nextBytes(library);
+		Files.write(source.resolve("a.txt"), library);
+		Files.write(source.resolve("dir1/copy.txt"), library);
+		// same size, other content
+		library[0]++;
+		Files.write(source.resolve("dir1/other.txt"), library);
+
+		File plain = new File(tempDir, "plain.tar.zst");
+		File linked = new File(tempDir, "linked.tar.zst");
+		CompressionSettings settings = new CompressionSettings(CompressionAlgorithm.ZSTD, 3);
+		CompressUtils.compress(source.toFile(), plain, settings);
+		settings.setHardLinks(HashAlgorithm.BLAKE3);
+		HashUtils.Info info = CompressUtils.compressAndHash(source.toFile(), linked, settings, HashAlgorithm.BLAKE3);
+
+		assertEquals(HashUtils.hash(HashAlgorithm.BLAKE3, source.toFile()).getHash(), info.getHash());
+		// zstd finds the copy within its window anyway, the link only saves encoding it
+		assertTrue(linked.length() < plain.length());
+		List<String> links = new ArrayList<>();
+		try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(decompress(linked)))) {
+			for (TarArchiveEntry entry = tar.getNextEntry(); entry != null; entry = tar.getNextEntry()) {
+				if (entry.isLink()) {
+					links.add(entry.getName() + " -> " + entry.getLinkName());
+				}
+			}
+		}
+		assertEquals(List.of("dir1/copy.txt -> a.txt"), links);
+	}
+
+	@Test
+	void typeOrderKeepsChecksum() throws Exception {
+		Path source = tempDir.toPath().resolve("source");
+		TestFiles.createTree(source);
+		Files.writeString(source.resolve("dir1/z.json"), "{}");
+		Files.writeString(source.resolve("b.json"), "[]");
+
+		File compressed = new File(tempDir, "compressed.tar.zst");
+		CompressionSettings settings = new CompressionSettings(CompressionAlgorithm.ZSTD, 3);
+		settings.setEntryOrder(EntryOrder.TYPE);
+		HashUtils.Info info = CompressUtils.compressAndHash(source.toFile(), compressed, settings, HashAlgorithm.BLAKE3);
+
+		assertEquals(HashUtils.hash(HashAlgorithm.BLAKE3, source.toFile()).getHash(), info.getHash());
+		List<String> entries = new ArrayList<>();
+		try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(decompress(compressed)))) {
+			for (TarArchiveEntry entry = tar.getNextEntry(); entry != null; entry = tar.getNextEntry()) {
+				entries.add(entry.getName());
+			}
+		}
+		// grouped by extension
+		assertEquals(entries.indexOf("b.json") + 1, entries.indexOf("dir1/z.json"), entries.toString());
+		assertEquals(compressed.length(), CompressUtils.compressedSize(source.toFile(), settings, EntryOrder.TYPE));
+	}
+
+	@Test
+	void incompressibleFilesDecompressToSameEntries() throws Exception {
+		Path source = tempDir.toPath().resolve("source");
+		TestFiles.createTree(source);
+		byte[] random = new byte[100 * 1024];
+		new Random(3).nextBytes(random);
+		Files.write(source.resolve("image.png"), random);
+		new Random(4).nextBytes(random);
+		Files.write(source.resolve("dir1/data.bin"), random);
+		assertTrue(IncompressibleDetector.isIncompressible(source.resolve("dir1/data.bin"), random.length));
+
+		for (CompressionAlgorithm algorithm : CompressionAlgorithm.values()) {
+			File plain = new File(tempDir, "plain" + algorithm.getFileExtension());
+			File skipping = new File(tempDir, "skipping" + algorithm.getFileExtension());
+			CompressionSettings settings = new CompressionSettings(algorithm, 6);
+			CompressUtils.compress(source.toFile(), plain, settings);
+			settings.setSkipIncompressible(true);
+			CompressUtils.compress(source.toFile(), skipping, settings);
+
+			assertEquals(entries(plain, algorithm), entries(skipping, algorithm));
+			// every switch adds a frame or block header
+			assertTrue(skipping.length() < plain.length() * 1.01, skipping.length() + " " + plain.length());
+		}
+	}
+
+	private static Map<String, String> entries(File file, CompressionAlgorithm algorithm) throws IOException {
+		Map<String, String> entries = new LinkedHashMap<>();
+		InputStream in = Files.newInputStream(file.toPath());
+		switch (algorithm) {
+			case XZ: in = new XZInputStream(in); break;
+			case ZSTD: in = new ZstdInputStream(in); break;
+			case LZ4: in = new FramedLZ4CompressorInputStream(in); break;
+		}
+		try (TarArchiveInputStream tar = new TarArchiveInputStream(in)) {
+			for (TarArchiveEntry entry = tar.getNextEntry(); entry != null; entry = tar.getNextEntry()) {
+				entries.put(entry.getName(), HexFormat.of().formatHex(IOUtils.toByteArray(tar)));
+			}
+		}
+		return entries;
+	}
+
+	@Test
+	void dictionaryCompressesSmallFiles() throws Exception {
+		Path source = TestFiles.createSmallFiles(tempDir.toPath().resolve("source"));
+
+		byte[] dictionary = CompressUtils.trainDictionary(List.of(source.toFile()), 16 * 1024);
+		assertNotNull(dictionary);
+		File plain = new File(tempDir, "plain.tar.zst");
+		File withDictionary = new File(tempDir, "dictionary.tar.zst");
+		CompressionSettings settings = new CompressionSettings(CompressionAlgorithm.ZSTD, 3);
+		CompressUtils.compress(source.toFile(), plain, settings);
+		settings.setDictionary(dictionary);
+		CompressUtils.compress(source.toFile(), withDictionary, settings);
+
+		assertEquals(0, CompressUtils.dictionaryId(plain));
+		assertEquals(settings.getDictionaryId(), CompressUtils.dictionaryId(withDictionary));
+
+		// a single small file has no earlier content to refer to without the dictionary
+		File small = new File(tempDir, "small.json.zst");
+		CompressUtils.compress(source.resolve("config-0.json").toFile(), small, settings);
+		assertTrue(small.length() < Files.size(source.resolve("config-0.json")) / 2);
+		try (InputStream in = new ZstdInputStream(Files.newInputStream(withDictionary.toPath())).setDict(dictionary)) {
+			assertArrayEquals(decompress(plain), IOUtils.toByteArray(in));
+		}
+	}
+
+	@Test
+	void patchDecompressesToNewVersion() throws Exception {
+		byte[] content = new byte[1024 * 1024];
+		new Random(42).nextBytes(content);
+		File base = new File(tempDir, "base.bin");
+		Files.write(base.toPath(), content);
+		content[1000] ^= 1;
+		content[500000] ^= 1;
+		File source = new File(tempDir, "source.bin");
+		Files.write(source.toPath(), content);
+
+		File patch = new File(tempDir, "patch.zst");
+		CompressUtils.patch(base, source, patch, 3);
+
+		assertTrue(patch.length() < 1000);
+		try (InputStream in = new ZstdInputStream(Files.newInputStream(patch.toPath()))
+				.setDict(Files.readAllBytes(base.toPath())).setLongMax(31)) {
+			assertArrayEquals(content, IOUtils.toByteArray(in));
+		}
+	}
+
+	@Test
+	void changesContainOnlyNewAndChangedEntries() throws Exception {
+		Path base = tempDir.toPath().resolve("base");
+		TestFiles.createTree(base);
+		Path source = tempDir.toPath().resolve("source");
+		TestFiles.createTree(source);
+		Files.writeString(source.resolve("a.txt"), "changed");
+		Files.writeString(source.resolve("dir1/new.txt"), "added");
+		Files.delete(source.resolve("a-b.txt"));
+
+		File changes = new File(tempDir, "changes.tar.zst");
+		CompressUtils.compressChanges(base.toFile(), source.toFile(), changes,
+				new CompressionSettings(CompressionAlgorithm.ZSTD, 3));
+
+		List<String> entries = new ArrayList<>();
+		try (TarArchiveInputStream tar = new TarArchiveInputStream(new ByteArrayInputStream(decompress(changes)))) {
+			for (TarArchiveEntry entry = tar.getNextEntry(); entry != null; entry = tar.getNextEntry()) {
+				entries.add(entry.getName());
+			}
+		}
+		assertEquals(List.of("a.txt", "dir1/new.txt"), entries);
+		assertEquals(List.of("a-b.txt"), CompressUtils.removedEntries(base.toFile(), source.toFile()));
+	}
+
+	@Test
+	void removedEntriesIncludeTypeChanges() throws Exception {
+		Path base = tempDir.toPath().resolve("base");
+		TestFiles.createTree(base);
+		Path source = tempDir.toPath().resolve("source");
+		TestFiles.createTree(source);
+		// a file replaced by a directory and a directory replaced by a file
+		Files.delete(source.resolve("a.txt"));
+		Files.createDirectories(source.resolve("a.txt"));
+		Files.writeString(source.resolve("a.txt/b.txt"), "b");
+		FileUtils.deleteDirectory(source.resolve("dir1").toFile());
+		Files.writeString(source.resolve("dir1"), "dir1");
+
+		assertEquals(List.of("a.txt", "dir1"), CompressUtils.removedEntries(base.toFile(), source.toFile()));
+	}
+
+	static byte[] decompress(File file) throws IOException {
+		try (InputStream in = new ZstdInputStream(Files.newInputStream(file.toPath()))) {
+			return IOUtils.toByteArray(in);
+		}
+	}
+}
@@ -0,0 +1,302 @@
+package xyz.wismer.nativestart.packer.util;
+
+import org.bouncycastle.crypto.digests.Blake3Digest;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import xyz.wismer.nativestart.packer.CompressionAlgorithm;
+import xyz.wismer.nativestart.packer.HashAlgorithm;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class HashUtilsTest {
+
+	// unkeyed hashes of the official BLAKE3 test vectors, the input is the byte sequence 0, 1, ..., 250, 0, 1, ...
+	private static final String[][] BLAKE3_VECTORS = {
+			{"0", "af1349b9f5f9a1a6a0404dea36dcc9499bcb25c9adc112b7cc9a93cae41f3262"},
+			{"1", "2d3adedff11b61f14c886e35afa036736dcd87a74d27b5c1510225d0f592e213"},
+			{"63", "e9bc37a594daad83be9470df7f7b3798297c3d834ce80ba85d6e207627b7db7b"},
+			{"64", "4eed7141ea4a5cd4b788606bd23f46e212af9cacebacdc7d1f4c6dc7f2511b98"},
+			{"65", "de1e5fa0be70df6d2be8fffd0e99ceaa8eb6e8c93a63f2d8d1c30ecb6b263dee"},
+			{"1023", "10108970eeda3eb932baac1428c7a2163b0e924c9a9e25b35bba72b28f70bd11"},
+			{"1024", "42214739f095a406f3fc83deb889744ac00df831c10daa55189b5d121c855af7"},
+			{"1025", "d00278ae47eb27b34faecf67b4fe263f82d5412916c1ffd97c8cb7fb814b8444"},
+			{"2048", "e776b6028c7cd22a4d0ba182a8bf62205d2ef576467e838ed6f2529b85fba24a"},
+			{"2049", "5f4d72f40d7a5f82b15ca2b2e44b1de3c2ef86c426c95c1af0b6879522563030"},
+			{"3072", "b98cb0ff3623be03326b373de6b9095218513e64f1ee2edd2525c7ad1e5cffd2"},
+			{"3073", "7124b49501012f81cc7f11ca069ec9226cecb8a2c850cfe644e327d22d3e1cd3"},
+			{"4096", "015094013f57a5277b59d8475c0501042c0b642e531b0a1c8f58d2163229e969"},
+			{"4097", "9b4052b38f1c5fc8b1f9ff7ac7b27cd242487b3d890d15c96a1c25b8aa0fb995"},
+			{"5120", "9cadc15fed8b5d854562b26a9536d9707cadeda9b143978f319ab34230535833"},
+			{"5121", "628bd2cb2004694adaab7bbd778a25df25c47b9d4155a55f8fbd79f2fe154cff"},
+			{"6144", "3e2e5b74e048f3add6d21faab3f83aa44d3b2278afb83b80b3c35164ebeca205"},
+			{"6145", "f1323a8631446cc50536a9f705ee5cb619424d46887f3c376c695b70e0f0507f"},
+			{"7168", "61da957ec2499a95d6b8023e2b0e604ec7f6b50e80a9678b89d2628e99ada77a"},
+			{"7169", "a003fc7a51754a9b3c7fae0367ab3d782dccf28855a03d435f8cfe74605e7817"},
+			{"8192", "aae792484c8efe4f19e2ca7d371d8c467ffb10748d8a5a1ae579948f718a2a63"},
+			{"8193", "bab6c09cb8ce8cf459261398d2e7aef35700bf488116ceb94a36d0f5f1b7bc3b"},
+			{"16384", "f875d6646de28985646f34ee13be9a576fd515f76b5b0a26bb324735041ddde4"},
+			{"31744", "62b6960e1a44bcc1eb1a611a8d6235b6b4b78f32e7abc4fb4c6cdcce94895c47"},
+			{"102400", "bc3e3d41a1146b069abffad3c0d44860cf664390afce4d9661f7902e7943e085"}
+	};
+
+	@TempDir
+	File tempDir;
+
+	@Test
+	void parallelHashMatchesSequential() throws Exception {
+		TestFiles.createTree(tempDir.toPath());
+
+		HashUtils.Info sequential = HashUtils.hash(HashAlgorithm.BLAKE3, tempDir, 1);
+		HashUtils.Info parallel = HashUtils.hash(HashAlgorithm.BLAKE3, tempDir, 8);
+
+		assertEquals(sequential.getSize(), parallel.getSize());
+		assertEquals(sequential.getHash(), parallel.getHash());
+	}
+
+	@Test
+	void blake3MatchesStreamingDigest() {
+		Random random = new Random(7);
+		byte[] data = new byte[3 * 1024 * 1024 + 17];
+		random.nextBytes(data);
+		for (int length : new int[]{0, 1, 63, 64, 65, 1023, 1024, 1025, 2048, 2049, 3 * 1024 + 1, 65536, data.length}) {
+			Blake3Digest digest = new Blake3Digest();
+			digest.update(data, 0, length);
+			byte[] expected = new byte[32];
+			digest.doFinal(expected, 0);
+			assertArrayEquals(expected, Blake3.hash(data, 0, length, false), "length " + length);
+		}
+	}
+
+	@Test
+	void blake3MatchesTestVectors() {
+		for (String[] vector : BLAKE3_VECTORS) {
+			int length = Integer.parseInt(vector[0]);
+			byte[] input = new byte[length];
+			for (int i = 0; i < length; i++) {
+				input[i] = (byte) (i % 251);
+			}
+			assertEquals(vector[1], toHex(Blake3.hash(input, 0, length, false)), "scalar, length " + length);
+			assertEquals(vector[1], toHex(Blake3.hash(input, 0, length, true)), "vector, length " + length);
+		}
+	}
+
+	@Test
+	void sha256MatchesTestVector() throws Exception {
+		File file = new File(tempDir, "abc.txt");
+		Files.writeString(file.toPath(), "abc");
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+				HashUtils.hash(HashAlgorithm.SHA256, file).getHash());
+	}
+
+	@Test
+	void vectorHashMatchesScalar() throws Exception {
+		TestFiles.createTree(tempDir.toPath());
+		Random random = new Random(3);
+		byte[] data = new byte[9 * 1024 * 1024 + 3];
+		random.nextBytes(data);
+		Files.write(tempDir.toPath().resolve("large.bin"), data);
+
+		assertEquals(HashUtils.hash(HashAlgorithm.BLAKE3, tempDir, 1).getHash(),
+				HashUtils.hash(HashAlgorithm.BLAKE3_VECTOR, tempDir, 1).getHash());
+		assertEquals(HashUtils.hash(HashAlgorithm.BLAKE3, tempDir, 1).getHash(),
+				HashUtils.hash(HashAlgorithm.BLAKE3_VECTOR, tempDir, 4).getHash());
+	}
+
+	@Test
+	void parallelLargeFileHashMatchesSequential() throws Exception {
+		Random random = new Random(11);
+		byte[] data = new byte[20 * 1024 * 1024 + 5];
+		random.nextBytes(data);
+		File file = new File(tempDir, "large.bin");
+		Files.write(file.toPath(), data);
+
+		assertEquals(HashUtils.hash(HashAlgorithm.BLAKE3, file, 1).getHash(),
+				HashUtils.hash(HashAlgorithm.BLAKE3, file, 4).getHash());
+	}
+
+	@Test
+	void fileHashesMatchStreamedDigestAtReadBoundaries() throws Exception {
+		Random random = new Random(5);
+		for (int size : new int[] {256 * 1024 - 1, 256 * 1024, 256 * 1024 + 1,
+				32 * 1024 * 1024 - 1, 32 * 1024 * 1024, 32 * 1024 * 1024 + 1}) {
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			File file = new File(tempDir, "file.bin");
+			Files.write(file.toPath(), data);
+			for (HashAlgorithm algorithm : new HashAlgorithm[] {HashAlgorithm.BLAKE3, HashAlgorithm.SHA256}) {
+				assertEquals(streamed(algorithm, file), HashUtils.hash(algorithm, file).getHash(), algorithm + " " + size);
+			}
+		}
+	}
+
+	@Test
+	void mappedFileHashMatchesStreamedDigest() throws Exception {
+		// sparse apart from random data at the start, around the end of the first mapping and at the end
+		File file = new File(tempDir, "sparse.bin");
+		long size = 256L * 1024 * 1024 + 5000;
+		byte[] data = new byte[4096];
+		new Random(9).nextBytes(data);
+		try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+			out.setLength(size);
+			for (long position : new long[] {0, 256L * 1024 * 1024 - 2048, size - data.length}) {
+				out.seek(position);
+				out.write(data);
+			}
+		}
+		for (HashAlgorithm algorithm : new HashAlgorithm[] {HashAlgorithm.BLAKE3, HashAlgorithm.SHA256}) {
+			assertEquals(streamed(algorithm, file), HashUtils.hash(algorithm, file).getHash(), algorithm.name());
+		}
+	}
+
+	private static String streamed(HashAlgorithm algorithm, File file) throws Exception {
+		MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+		Blake3Digest blake3 = new Blake3Digest();
+		byte[] buffer = new byte[8192];
+		try (InputStream in = new FileInputStream(file)) {
+			for (int len; (len = in.read(buffer)) > 0; ) {
+				if (algorithm == HashAlgorithm.SHA256) {
+					sha256.update(buffer, 0, len);
+				} else {
+					blake3.update(buffer, 0, len);
+				}
+			}
+		}
+		if (algorithm == HashAlgorithm.SHA256) {
+			return toHex(sha256.digest());
+		}
+		byte[] hash = new byte[32];
+		blake3.doFinal(hash, 0);
+		return toHex(hash);
+	}
+
+	@Test
+	void directoryHashMatchesBaseline() throws Exception {
+		// names sorting differently by path than by walking the directories, checksum of the original implementation
+		assertMatchesBaseline("4011fb0f8ef93cd96743161300b1aba59df6b88d544e6fc0a432227da261c4f8", 33,
+				"a-b", "a/b", "a.b", "a0", "ab", "a b", "a_b", "A", "Z/z", "b/a-b", "b/a/b");
+	}
+
+	@Test
+	void unicodeDirectoryHashMatchesBaseline() throws Exception {
+		// U+FF21 sorts after the surrogates of U+1F600 by UTF-16 code units, before it by code points
+		String[] names = {"a-b", "a/b", "\u00e9.txt", "\u00fc/\u00df", "\u65e5\u672c/\u8a9e.txt", "\ud83d\ude00", "\uff21"};
+		try {
+			for (String name : names) {
+				tempDir.toPath().resolve(name);
+			}
+		} catch (InvalidPathException e) {
+			assumeTrue(false, "file names cannot be encoded: " + e.getMessage());
+		}
+		assertMatchesBaseline("52906de44a3ffcbf01a39dfcaa390860b341f1362f0d34247292a6b90e78f6be", 38, names);
+	}
+
+	private void assertMatchesBaseline(String expected, long size, String... names) throws Exception {
+		Path root = tempDir.toPath().resolve("tree");
+		for (String name : names) {
+			Path file = root.resolve(name);
+			Files.createDirectories(file.getParent());
+			Files.writeString(file, name);
+		}
+		for (int threads : new int[] {1, 4}) {
+			HashUtils.Info info = HashUtils.hash(HashAlgorithm.BLAKE3, root.toFile(), threads);
+			assertEquals(expected, info.getHash(), threads + " threads");
+			assertEquals(size, info.getSize());
+		}
+		HashUtils.Info compressed = CompressUtils.compressAndHash(root.toFile(), new File(tempDir, "tree.tar.zstd"),
+				new CompressionSettings(CompressionAlgorithm.ZSTD, 3), HashAlgorithm.BLAKE3);
+		assertEquals(expected, compressed.getHash(), "compressed");
+	}
+
+	@Test
+	void cachedHashesAreReused() throws Exception {
+		Path root = tempDir.toPath().resolve("tree");
+		TestFiles.createTree(root);
+		FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+		try (Stream<Path> paths = Files.walk(root)) {
+			for (Path path : paths.toList()) {
+				Files.setLastModifiedTime(path, past);
+			}
+		}
+		File cacheFile = new File(tempDir, "hashes.cache");
+		HashCache cache = new HashCache(cacheFile);
+		HashUtils.Info expected = HashUtils.hash(HashAlgorithm.BLAKE3, root.toFile(), 2, cache);
+		cache.save();
+
+		// same size and modification time: a cache hit must not read the changed content
+		Path changed = root.resolve("a.txt");
+		Files.writeString(changed, "b");
+		Files.setLastModifiedTime(changed, past);
+
+		HashUtils.Info cached = HashUtils.hash(HashAlgorithm.BLAKE3, root.toFile(), 2, new HashCache(cacheFile));
+		assertEquals(expected.getHash(), cached.getHash());
+		assertNotEquals(expected.getHash(), HashUtils.hash(HashAlgorithm.BLAKE3, root.toFile()).getHash());
+	}
+
+	@Test
+	void cacheDropsUnusedEntries() throws Exception {
+		Path root = tempDir.toPath().resolve("tree");
+		Files.createDirectories(root);
+		FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+		Path changed = root.resolve("a.txt");
+		Files.writeString(changed, "a");
+		Files.setLastModifiedTime(changed, past);
+		File cacheFile = new File(tempDir, "hashes.cache");
+		HashCache cache = new HashCache(cacheFile);
+		HashUtils.hash(HashAlgorithm.BLAKE3, root.toFile(), 1, cache);
+		cache.save();
+
+		Files.writeString(changed, "bb");
+		Files.setLastModifiedTime(changed, past);
+		cache = new HashCache(cacheFile);
+		HashUtils.hash(HashAlgorithm.BLAKE3, root.toFile(), 1, cache);
+		cache.save();
+
+		List<String> lines = Files.readAllLines(cacheFile.toPath());
+		assertEquals(2, lines.size(), lines.toString());
+		assertTrue(lines.get(1).startsWith("BLAKE3\ta.txt\t2\t"), lines.toString());
+	}
+
+	@Test
+	void cacheKeysSingleFilesByPath() throws Exception {
+		FileTime past = FileTime.fromMillis(System.currentTimeMillis() - 60_000);
+		File first = new File(tempDir, "first/lib.jar");
+		File second = new File(tempDir, "second/lib.jar");
+		for (File file : new File[] {first, second}) {
+			Files.createDirectories(file.getParentFile().toPath());
+			Files.writeString(file.toPath(), file.getParentFile().getName().substring(0, 5));
+			Files.setLastModifiedTime(file.toPath(), past);
+		}
+		HashCache cache = new HashCache(new File(tempDir, "hashes.cache"));
+
+		assertEquals(HashUtils.hash(HashAlgorithm.BLAKE3, first).getHash(),
+				HashUtils.hash(HashAlgorithm.BLAKE3, first, 1, cache).getHash());
+		assertEquals(HashUtils.hash(HashAlgorithm.BLAKE3, second).getHash(),
+				HashUtils.hash(HashAlgorithm.BLAKE3, second, 1, cache).getHash());
+	}
+
+	private static String toHex(byte[] data) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : data) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+}
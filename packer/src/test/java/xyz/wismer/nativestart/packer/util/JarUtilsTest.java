@@ -0,0 +1,77 @@
+package xyz.wismer.nativestart.packer.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+public class JarUtilsTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void normalizedJarHasStoredEntries() throws Exception {
+		File jar = tempDir.resolve("lib.jar").toFile();
+		try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(jar.toPath()))) {
+			// unsorted, with the manifest in the middle
+			write(out, "b/B.class", "class b");
+			write(out, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\r\nMain-Class: a.A\r\n\r\n");
+			write(out, "a/A.class", "class a");
+		}
+		File normalized = tempDir.resolve("normalized.jar").toFile();
+		JarUtils.normalize(jar, normalized);
+
+		assertEquals(entries(jar), entries(normalized));
+		List<String> names = new ArrayList<>();
+		try (ZipFile zip = new ZipFile(normalized)) {
+			for (ZipEntry entry : Collections.list(zip.entries())) {
+				assertEquals(ZipEntry.STORED, entry.getMethod());
+				names.add(entry.getName());
+			}
+		}
+		assertEquals(List.of("META-INF/MANIFEST.MF", "a/A.class", "b/B.class"), names);
+		try (JarInputStream in = new JarInputStream(Files.newInputStream(normalized.toPath()))) {
+			Manifest manifest = in.getManifest();
+			assertNotNull(manifest);
+			assertEquals("a.A", manifest.getMainAttributes().getValue("Main-Class"));
+		}
+
+		File again = tempDir.resolve("again.jar").toFile();
+		JarUtils.normalize(normalized, again);
+		assertArrayEquals(Files.readAllBytes(normalized.toPath()), Files.readAllBytes(again.toPath()));
+	}
+
+	private static void write(ZipOutputStream out, String name, String content) throws Exception {
+		out.putNextEntry(new ZipEntry(name));
+		out.write(content.getBytes(StandardCharsets.UTF_8));
+		out.closeEntry();
+	}
+
+	private static Map<String, String> entries(File jar) throws Exception {
+		Map<String, String> result = new HashMap<>();
+		try (ZipFile zip = new ZipFile(jar)) {
+			for (ZipEntry entry : Collections.list(zip.entries())) {
+				result.put(entry.getName(), new String(zip.getInputStream(entry).readAllBytes(), StandardCharsets.UTF_8));
+			}
+		}
+		return result;
+	}
+}
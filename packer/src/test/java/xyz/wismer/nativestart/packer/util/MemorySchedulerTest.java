@@ -0,0 +1,59 @@
+package xyz.wismer.nativestart.packer.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MemorySchedulerTest {
+
+	@Test
+	void staysWithinBudget() throws Exception {
+		MemoryScheduler scheduler = new MemoryScheduler(100);
+		AtomicLong used = new AtomicLong();
+		AtomicLong maxUsed = new AtomicLong();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				long memory = i % 3 == 0 ? 60 : 30;
+				futures.add(executor.submit(() -> {
+					scheduler.acquire(memory);
+					try {
+						maxUsed.accumulateAndGet(used.addAndGet(memory), Math::max);
+						Thread.sleep(2);
+					} finally {
+						used.addAndGet(-memory);
+						scheduler.release(memory);
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertTrue(maxUsed.get() <= 100);
+		assertEquals(maxUsed.get(), scheduler.getPeakMemory());
+	}
+
+	@Test
+	void admitsOversizedJobAlone() throws Exception {
+		MemoryScheduler scheduler = new MemoryScheduler(100);
+		scheduler.acquire(500);
+		assertEquals(500, scheduler.getPeakMemory());
+		scheduler.release(500);
+		scheduler.acquire(50);
+		scheduler.acquire(50);
+		assertEquals(500, scheduler.getPeakMemory());
+	}
+}
@@ -0,0 +1,45 @@
+package xyz.wismer.nativestart.packer.util;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Fixtures shared by the tests.
+ */
+public class TestFiles {
+
+	/**
+	 * Create a tree of random files in nested directories and a few files with names sorting differently by path.
+	 */
+	public static void createTree(Path root) throws IOException {
+		Random random = new Random(42);
+		for (int i = 0; i < 20; i++) {
+			Path dir = root.resolve("dir" + (i % 4)).resolve("sub" + (i % 3));
+			Files.createDirectories(dir);
+			byte[] content = new byte[random.nextInt(20000)];
+			random.nextBytes(content);
+			Files.write(dir.resolve("file" + i + ".bin"), content);
+		}
+		Files.writeString(root.resolve("a.txt"), "a");
+		Files.writeString(root.resolve("a-b.txt"), "a-b");
+		Files.createDirectories(root.resolve("a"));
+		Files.writeString(root.resolve("a").resolve("b.txt"), "b");
+	}
+
+	/**
+	 * Create many small, similar JSON files.
+	 */
+	public static Path createSmallFiles(Path root) throws IOException {
+		Files.createDirectories(root);
+		Random random = new Random(42);
+		for (int i = 0; i < 300; i++) {
+			Files.writeString(root.resolve("config-" + i + ".json"), "{\n  \"name\": \"component-" + i
+					+ "\",\n  \"version\": \"1." + random.nextInt(10) + "\",\n  \"enabled\": " + random.nextBoolean()
+					+ ",\n  \"timeout\": " + random.nextInt(1000) + ",\n  \"description\": \"A configuration file"
+					+ " for one of the many small resources of the application\"\n}\n");
+		}
+		return root;
+	}
+}